@@ -0,0 +1,140 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+import ch.petikoch.libs.jtwfg.assertion.Preconditions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link DeadlockDetector} which remembers the analysis results of the recently analyzed graphs. Analyzing a graph
+ * snapshot with the same version (see {@link Graph#isSameVersion(Graph)}) as an already analyzed one returns the
+ * remembered result in O(1).
+ * <p>
+ * The number of remembered results is bounded, the least recently used ones are evicted first. So one instance can be
+ * shared for the graphs of many {@link GraphBuilder}s.
+ * <p>
+ * Thread-safe.
+ *
+ * @param <T> The type of the ID of the tasks. Something with a meaningful {@link Object#equals(Object)} and {@link
+ *            Object#hashCode()} implementation like {@link String}, {@link Long} or a class of your domain model which is fine
+ *            to use as a key e.g. in a {@link java.util.HashMap}. If T implements Comparable, then you get sorted collections.
+ */
+public class CachingDeadlockDetector<T> extends DeadlockDetector<T> {
+
+    private final Map<CacheKey, DeadlockAnalysisResult<T>> cache;
+    private long hitCount;
+    private long missCount;
+
+    private final Object internalLock = new Object();
+
+    /**
+     * Creates an instance remembering the results of the last 16 analyzed graphs.
+     */
+    public CachingDeadlockDetector() {
+        this(16);
+    }
+
+    /**
+     * @param maxCachedResults the maximal number of remembered results, &gt; 0
+     * @throws java.lang.IllegalArgumentException in case of maxCachedResults is &lt;= 0
+     */
+    public CachingDeadlockDetector(final int maxCachedResults) {
+        Preconditions.checkArgument(maxCachedResults > 0, "maxCachedResults must be > 0: " + maxCachedResults);
+        this.cache = new LinkedHashMap<CacheKey, DeadlockAnalysisResult<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<CacheKey, DeadlockAnalysisResult<T>> eldest) {
+                return size() > maxCachedResults;
+            }
+        };
+    }
+
+    @Override
+    public DeadlockAnalysisResult<T> analyze(final Graph<T> graph, final boolean calculateSchedulingLayers) {
+        final CacheKey cacheKey = new CacheKey(graph.getBuilderId(), graph.getVersion(), calculateSchedulingLayers);
+        synchronized (internalLock) {
+            DeadlockAnalysisResult<T> cachedResult = cache.get(cacheKey);
+            if (cachedResult != null) {
+                hitCount++;
+                return cachedResult;
+            }
+            missCount++;
+        }
+        // analyzing outside of the lock, to not block the analysis of other graphs
+        final DeadlockAnalysisResult<T> result = super.analyze(graph, calculateSchedulingLayers);
+        synchronized (internalLock) {
+            cache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of analyses answered with a remembered result
+     */
+    public long getHitCount() {
+        synchronized (internalLock) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * @return the number of analyses which had to be done
+     */
+    public long getMissCount() {
+        synchronized (internalLock) {
+            return missCount;
+        }
+    }
+
+    private static final class CacheKey {
+
+        private final long builderId;
+        private final long version;
+        private final boolean withSchedulingLayers;
+
+        CacheKey(final long builderId, final long version, final boolean withSchedulingLayers) {
+            this.builderId = builderId;
+            this.version = version;
+            this.withSchedulingLayers = withSchedulingLayers;
+        }
+
+        // generated by IntelliJ IDEA
+        @SuppressWarnings("RedundantIfStatement")
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final CacheKey cacheKey = (CacheKey) o;
+
+            if (builderId != cacheKey.builderId) return false;
+            if (version != cacheKey.version) return false;
+            if (withSchedulingLayers != cacheKey.withSchedulingLayers) return false;
+
+            return true;
+        }
+
+        // generated by IntelliJ IDEA
+        @Override
+        public int hashCode() {
+            int result = (int) (builderId ^ (builderId >>> 32));
+            result = 31 * result + (int) (version ^ (version >>> 32));
+            result = 31 * result + (withSchedulingLayers ? 1 : 0);
+            return result;
+        }
+    }
+}
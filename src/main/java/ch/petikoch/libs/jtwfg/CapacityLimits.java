@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+import ch.petikoch.libs.jtwfg.assertion.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capacity limits of a {@link GraphBuilder}, to bound its memory usage in case of e.g. a runaway producer.
+ * <p>
+ * The hard limits can't be exceeded: a mutation which would exceed them is handled according to the {@link
+ * OverflowPolicy}. Exceeding the soft limits is only notified to the {@link CapacityListener}.
+ * <p>
+ * Immutable / thread-safe.
+ */
+public class CapacityLimits {
+
+    /**
+     * What happens with a mutation which would exceed the hard limits.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The mutation is rejected with an {@link IllegalStateException}.
+         */
+        REJECT,
+        /**
+         * The mutation waits until enough tasks or dependencies are removed by other threads. It is rejected with an
+         * {@link IllegalStateException}, if this doesn't happen within the timeout.
+         */
+        BLOCK,
+        /**
+         * {@link CapacityListener#hardLimitReached(GraphBuilder)} is called, which may remove tasks or dependencies. If
+         * the hard limits would still be exceeded afterwards, the mutation is rejected with an {@link
+         * IllegalStateException}.
+         */
+        CALLBACK
+    }
+
+    private final int maxTasks;
+    private final int maxDependencies;
+    private final int softMaxTasks;
+    private final int softMaxDependencies;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final CapacityListener capacityListener;
+
+    /**
+     * Creates hard limits with {@link OverflowPolicy#REJECT} and without soft limits.
+     *
+     * @param maxTasks        the maximal number of tasks, &gt; 0
+     * @param maxDependencies the maximal number of dependencies, &gt;= 0
+     */
+    public CapacityLimits(int maxTasks, int maxDependencies) {
+        this(maxTasks, maxDependencies, maxTasks, maxDependencies, OverflowPolicy.REJECT, 0, TimeUnit.MILLISECONDS, null);
+    }
+
+    /**
+     * @param maxTasks            the maximal number of tasks, &gt; 0
+     * @param maxDependencies     the maximal number of dependencies ("wait for" dependencies plus tasks in "wait for
+     *                            any of" groups), &gt;= 0
+     * @param softMaxTasks        the number of tasks above which the listener is notified, &lt;= maxTasks
+     * @param softMaxDependencies the number of dependencies above which the listener is notified, &lt;=
+     *                            maxDependencies
+     * @param overflowPolicy      not null
+     * @param blockTimeout        the timeout for {@link OverflowPolicy#BLOCK}, &gt;= 0
+     * @param blockTimeoutUnit    not null
+     * @param capacityListener    may be null, not null in case of {@link OverflowPolicy#CALLBACK}
+     * @throws java.lang.IllegalArgumentException in case of invalid arguments
+     */
+    public CapacityLimits(int maxTasks,
+                          int maxDependencies,
+                          int softMaxTasks,
+                          int softMaxDependencies,
+                          OverflowPolicy overflowPolicy,
+                          long blockTimeout,
+                          TimeUnit blockTimeoutUnit,
+                          /* Nullable */ CapacityListener capacityListener) {
+        Preconditions.checkArgument(maxTasks > 0, "maxTasks must be > 0: " + maxTasks);
+        Preconditions.checkArgument(maxDependencies >= 0, "maxDependencies must be >= 0: " + maxDependencies);
+        Preconditions.checkArgument(softMaxTasks >= 0 && softMaxTasks <= maxTasks, "softMaxTasks must be >= 0 and <= maxTasks: " + softMaxTasks);
+        Preconditions.checkArgument(softMaxDependencies >= 0 && softMaxDependencies <= maxDependencies, "softMaxDependencies must be >= 0 and <= maxDependencies: " + softMaxDependencies);
+        Preconditions.checkArgumentNotNull(overflowPolicy, "overflowPolicy must not be null");
+        Preconditions.checkArgument(blockTimeout >= 0, "blockTimeout must be >= 0: " + blockTimeout);
+        Preconditions.checkArgumentNotNull(blockTimeoutUnit, "blockTimeoutUnit must not be null");
+        Preconditions.checkArgument(overflowPolicy != OverflowPolicy.CALLBACK || capacityListener != null, "capacityListener must not be null with overflowPolicy CALLBACK");
+        this.maxTasks = maxTasks;
+        this.maxDependencies = maxDependencies;
+        this.softMaxTasks = softMaxTasks;
+        this.softMaxDependencies = softMaxDependencies;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutUnit.toNanos(blockTimeout);
+        this.capacityListener = capacityListener;
+    }
+
+    public int getMaxTasks() {
+        return maxTasks;
+    }
+
+    public int getMaxDependencies() {
+        return maxDependencies;
+    }
+
+    public int getSoftMaxTasks() {
+        return softMaxTasks;
+    }
+
+    public int getSoftMaxDependencies() {
+        return softMaxDependencies;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getBlockTimeoutNanos() {
+        return blockTimeoutNanos;
+    }
+
+    /**
+     * @return the listener or null
+     */
+    public CapacityListener getCapacityListener() {
+        return capacityListener;
+    }
+
+    // generated by IntelliJ IDEA
+    @Override
+    public String toString() {
+        return "CapacityLimits{" +
+               "maxTasks=" + maxTasks +
+               ", maxDependencies=" + maxDependencies +
+               ", softMaxTasks=" + softMaxTasks +
+               ", softMaxDependencies=" + softMaxDependencies +
+               ", overflowPolicy=" + overflowPolicy +
+               ", blockTimeoutNanos=" + blockTimeoutNanos +
+               '}';
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+/**
+ * Gets notified about the capacity usage of a {@link GraphBuilder} with {@link CapacityLimits}.
+ * <p>
+ * The methods are called by the thread mutating the graph builder, while holding its internal lock. They can use the
+ * graph builder (e.g. to remove tasks), but should return quickly.
+ */
+public interface CapacityListener {
+
+    /**
+     * Called when the number of tasks or dependencies exceeds a soft limit. Not called again, until the number of tasks
+     * and dependencies were below the soft limits again.
+     *
+     * @param graphBuilder the graph builder
+     */
+    default void softLimitExceeded(GraphBuilder<?> graphBuilder) {
+    }
+
+    /**
+     * Called with {@link CapacityLimits.OverflowPolicy#CALLBACK} when a mutation would exceed a hard limit.
+     *
+     * @param graphBuilder the graph builder
+     */
+    default void hardLimitReached(GraphBuilder<?> graphBuilder) {
+    }
+}
@@ -17,7 +17,9 @@ package ch.petikoch.libs.jtwfg;
 
 import ch.petikoch.libs.jtwfg.assertion.Preconditions;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -33,10 +35,16 @@ public class DeadlockAnalysisResult<T> {
 
     private final boolean hasDeadlock;
     private final Set<DeadlockCycle<T>> deadlockCycles;
+    private final List<Set<T>> schedulingLayers;
 
     DeadlockAnalysisResult(final Set<DeadlockCycle<T>> deadlockCycles) {
+        this(deadlockCycles, null);
+    }
+
+    DeadlockAnalysisResult(final Set<DeadlockCycle<T>> deadlockCycles, /* Nullable */ final List<Set<T>> schedulingLayers) {
         this.deadlockCycles = Collections.unmodifiableSet(deadlockCycles);
         hasDeadlock = !this.deadlockCycles.isEmpty();
+        this.schedulingLayers = schedulingLayers != null ? Collections.unmodifiableList(schedulingLayers) : null;
     }
 
     /**
@@ -67,6 +75,38 @@ public class DeadlockAnalysisResult<T> {
         return false;
     }
 
+    /**
+     * The not blocked tasks in topological order, grouped in layers: the first layer contains the tasks which are
+     * waiting for nothing, every further layer contains the tasks which are waiting only for tasks of the previous
+     * layers. The tasks within a layer are independent of each other. A "wait for any of" group is fulfilled by its
+     * first member in a previous layer, so a task waiting for a group of deadlocked tasks is not scheduled, even if
+     * it is not part of the deadlock cycles (see {@link DeadlockDetector#analyzeKnots(Graph)} for those).
+     *
+     * @return an unmodifiable list of unmodifiable sets of tasks
+     * @throws java.lang.IllegalStateException in case the scheduling layers were not requested in {@link
+     *                                         DeadlockDetector#analyze(Graph, boolean)}
+     */
+    public List<Set<T>> getSchedulingLayers() {
+        if (schedulingLayers == null) {
+            throw new IllegalStateException("The scheduling layers were not calculated, use DeadlockDetector.analyze(graph, true)");
+        }
+        return schedulingLayers;
+    }
+
+    /**
+     * @return an unmodifiable list of the not deadlocked tasks in topological order (the flattened {@link
+     * #getSchedulingLayers()})
+     * @throws java.lang.IllegalStateException in case the scheduling layers were not requested in {@link
+     *                                         DeadlockDetector#analyze(Graph, boolean)}
+     */
+    public List<T> getSchedulingOrder() {
+        List<T> result = new ArrayList<>();
+        for (Set<T> layer : getSchedulingLayers()) {
+            result.addAll(layer);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
     // generated by IntelliJ IDEA
     @SuppressWarnings("RedundantIfStatement")
     @Override
@@ -78,6 +118,8 @@ public class DeadlockAnalysisResult<T> {
 
         if (hasDeadlock != that.hasDeadlock) return false;
         if (!deadlockCycles.equals(that.deadlockCycles)) return false;
+        if (schedulingLayers != null ? !schedulingLayers.equals(that.schedulingLayers) : that.schedulingLayers != null)
+            return false;
 
         return true;
     }
@@ -87,6 +129,7 @@ public class DeadlockAnalysisResult<T> {
     public int hashCode() {
         int result = (hasDeadlock ? 1 : 0);
         result = 31 * result + deadlockCycles.hashCode();
+        result = 31 * result + (schedulingLayers != null ? schedulingLayers.hashCode() : 0);
         return result;
     }
 
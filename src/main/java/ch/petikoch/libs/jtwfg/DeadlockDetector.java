@@ -21,6 +21,9 @@ import java.util.*;
  * An implementation of an algorithm to look for deadlocks in a "task wait for model" graph. The algorithm looks for
  * circular dependencies between tasks.
  * <p>
+ * {@link #analyze(Graph)} considers only the "wait for" (AND) dependencies of {@link Task#getWaitsForTasks()}. Use
+ * {@link #analyzeKnots(Graph)} for graphs with "wait for any of" (OR) groups.
+ * <p>
  * Immutable / thread-safe.
  *
  * @param <T> The type of the ID of the tasks. Something with a meaningful {@link Object#equals(Object)} and {@link
@@ -29,18 +32,379 @@ import java.util.*;
  */
 public class DeadlockDetector<T> {
 
+    private static final byte UNVISITED = 0;
+    private static final byte IN_PROGRESS = 1;
+    private static final byte DONE = 2;
+
+    private static final ThreadLocal<DepthFirstSearchScratch> depthFirstSearchScratch = ThreadLocal.withInitial(DepthFirstSearchScratch::new);
+
+    /**
+     * A fast check, if there is any deadlock in the graph, without materializing the deadlock cycles like {@link
+     * #analyze(Graph)}. Like {@link #analyze(Graph)}, it considers only the "wait for" dependencies of {@link
+     * Task#getWaitsForTasks()}.
+     * <p>
+     * Does a single depth first search, which stops at the first found cycle. Uses per thread reused scratch arrays,
+     * so it doesn't allocate memory once the scratch arrays are big enough for the graph.
+     *
+     * @param graph not null
+     * @return true, if you have one or more deadlocks
+     */
+    public boolean hasDeadlock(final Graph<T> graph) {
+        final Graph.WaitsForAdjacency adjacency = graph.getWaitsForAdjacency();
+        final int[] offsets = adjacency.offsets;
+        final int[] successors = adjacency.indexes;
+        final int taskCount = offsets.length - 1;
+        final DepthFirstSearchScratch scratch = depthFirstSearchScratch.get();
+        scratch.prepare(taskCount);
+        final byte[] states = scratch.states;
+        final int[] stack = scratch.stack;
+        final int[] nextSuccessors = scratch.nextSuccessors;
+        for (int start = 0; start < taskCount; start++) {
+            if (states[start] != UNVISITED) {
+                continue;
+            }
+            int stackSize = 0;
+            states[start] = IN_PROGRESS;
+            nextSuccessors[start] = offsets[start];
+            stack[stackSize++] = start;
+            while (stackSize > 0) {
+                int task = stack[stackSize - 1];
+                if (nextSuccessors[task] < offsets[task + 1]) {
+                    int successor = successors[nextSuccessors[task]++];
+                    if (states[successor] == IN_PROGRESS) {
+                        return true; // back edge
+                    }
+                    if (states[successor] == UNVISITED) {
+                        states[successor] = IN_PROGRESS;
+                        nextSuccessors[successor] = offsets[successor];
+                        stack[stackSize++] = successor;
+                    }
+                } else {
+                    states[task] = DONE;
+                    stackSize--;
+                }
+            }
+        }
+        return false;
+    }
+
     public DeadlockAnalysisResult<T> analyze(final Graph<T> graph) {
+        return analyze(graph, false);
+    }
+
+    /**
+     * @param graph                     not null
+     * @param calculateSchedulingLayers true, to calculate also the scheduling layers of the not deadlocked tasks (see
+     *                                  {@link DeadlockAnalysisResult#getSchedulingLayers()})
+     * @return the analysis result
+     */
+    public DeadlockAnalysisResult<T> analyze(final Graph<T> graph, final boolean calculateSchedulingLayers) {
         Set<DeadlockCycle<T>> cycleCollector = new LinkedHashSet<>();
-        findCycles(graph, cycleCollector);
+        List<Set<T>> schedulingLayers = null;
+        if (calculateSchedulingLayers) {
+            Set<T> scheduledTasks = new HashSet<>();
+            schedulingLayers = calculateSchedulingLayers(graph, scheduledTasks);
+            // a scheduled task can't be part of a cycle
+            findCycles(graph, scheduledTasks, cycleCollector);
+        } else {
+            findCycles(graph, Collections.emptySet(), cycleCollector);
+        }
         Set<DeadlockCycle<T>> cyclesWithAlsoDeadlocked = findAlsoDeadlocked(graph, Collections.unmodifiableSet(cycleCollector));
-        return new DeadlockAnalysisResult<>(cyclesWithAlsoDeadlocked);
+        return new DeadlockAnalysisResult<>(cyclesWithAlsoDeadlocked, schedulingLayers);
+    }
+
+    /**
+     * Looks for deadlocks in a graph with "wait for" (AND) dependencies and "wait for any of" (OR) groups, see {@link
+     * GraphBuilder#addTaskWaitsForAnyOf(Object, Iterable)}. A cycle is not necessarily a deadlock in this model, as
+     * long as a task in the cycle can still be unblocked by another task of one of its "wait for any of" groups.
+     * <p>
+     * The graph is reduced like in a topological sort: a task is unblocked, when all its "wait for" tasks and at least
+     * one task of each of its "wait for any of" groups are unblocked. The remaining tasks are deadlocked. Their knots
+     * are the strongly connected components without outgoing dependencies to other deadlocked tasks. Runs in O(V+E).
+     *
+     * @param graph not null
+     * @return the analysis result
+     */
+    public KnotAnalysisResult<T> analyzeKnots(final Graph<T> graph) {
+        final List<Task<T>> tasks = new ArrayList<>(graph.getTasks());
+        final Map<T, Integer> taskIndexes = new HashMap<>(tasks.size() * 2);
+        for (int i = 0; i < tasks.size(); i++) {
+            taskIndexes.put(tasks.get(i).getId(), i);
+        }
+
+        final Reduction reduction = reduce(tasks, taskIndexes);
+        final boolean[] unblocked = reduction.unblocked;
+
+        final int[][] deadlockedSuccessors = new int[tasks.size()][];
+        for (int i = 0; i < tasks.size(); i++) {
+            if (!unblocked[i]) {
+                deadlockedSuccessors[i] = findDeadlockedSuccessors(tasks.get(i), i, taskIndexes, reduction);
+            }
+        }
+        final int[] components = findStronglyConnectedComponents(deadlockedSuccessors);
+
+        final Set<Integer> nonKnotComponents = new HashSet<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (!unblocked[i]) {
+                for (int successor : deadlockedSuccessors[i]) {
+                    if (components[successor] != components[i]) {
+                        nonKnotComponents.add(components[i]);
+                    }
+                }
+            }
+        }
+
+        final Set<T> deadlockedTasks = new LinkedHashSet<>();
+        final Map<Integer, Set<T>> knots = new LinkedHashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (!unblocked[i]) {
+                deadlockedTasks.add(tasks.get(i).getId());
+                if (!nonKnotComponents.contains(components[i])) {
+                    if (!knots.containsKey(components[i])) {
+                        knots.put(components[i], new LinkedHashSet<>());
+                    }
+                    knots.get(components[i]).add(tasks.get(i).getId());
+                }
+            }
+        }
+        final Set<Set<T>> knotSet = new LinkedHashSet<>();
+        for (Set<T> knot : knots.values()) {
+            knotSet.add(Collections.unmodifiableSet(knot));
+        }
+        return new KnotAnalysisResult<>(knotSet, deadlockedTasks);
+    }
+
+    private static <T> Reduction reduce(List<Task<T>> tasks, Map<T, Integer> taskIndexes) {
+        final int[] blockingCounts = new int[tasks.size()];
+        final List<List<Integer>> waitingTasks = new ArrayList<>(tasks.size());
+        final List<List<Integer>> containingGroups = new ArrayList<>(tasks.size());
+        final List<Integer> groupOwners = new ArrayList<>();
+        final int[] firstGroups = new int[tasks.size()];
+        for (int i = 0; i < tasks.size(); i++) {
+            waitingTasks.add(new ArrayList<>(0));
+            containingGroups.add(new ArrayList<>(0));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            Task<T> task = tasks.get(i);
+            blockingCounts[i] = task.getWaitsForTasks().size() + task.getWaitsForAnyOfTasks().size();
+            firstGroups[i] = groupOwners.size();
+            for (Task<T> waitsForTask : task.getWaitsForTasks()) {
+                waitingTasks.get(taskIndexes.get(waitsForTask.getId())).add(i);
+            }
+            for (Set<Task<T>> waitsForAnyOfTasks : task.getWaitsForAnyOfTasks()) {
+                int group = groupOwners.size();
+                groupOwners.add(i);
+                for (Task<T> waitsForTask : waitsForAnyOfTasks) {
+                    containingGroups.get(taskIndexes.get(waitsForTask.getId())).add(group);
+                }
+            }
+        }
+
+        final boolean[] unblocked = new boolean[tasks.size()];
+        final boolean[] fulfilledGroups = new boolean[groupOwners.size()];
+        final Deque<Integer> unblockedQueue = new ArrayDeque<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            if (blockingCounts[i] == 0) {
+                unblocked[i] = true;
+                unblockedQueue.add(i);
+            }
+        }
+        while (!unblockedQueue.isEmpty()) {
+            int unblockedTask = unblockedQueue.poll();
+            for (int waitingTask : waitingTasks.get(unblockedTask)) {
+                if (--blockingCounts[waitingTask] == 0) {
+                    unblocked[waitingTask] = true;
+                    unblockedQueue.add(waitingTask);
+                }
+            }
+            for (int group : containingGroups.get(unblockedTask)) {
+                if (!fulfilledGroups[group]) {
+                    fulfilledGroups[group] = true;
+                    int groupOwner = groupOwners.get(group);
+                    if (--blockingCounts[groupOwner] == 0) {
+                        unblocked[groupOwner] = true;
+                        unblockedQueue.add(groupOwner);
+                    }
+                }
+            }
+        }
+        return new Reduction(unblocked, fulfilledGroups, firstGroups);
+    }
+
+    /**
+     * The deadlocked tasks the given deadlocked task waits for: its "wait for" tasks and the tasks of its unfulfilled
+     * "wait for any of" groups. A fulfilled group doesn't block, even if some of its tasks are deadlocked.
+     */
+    private static <T> int[] findDeadlockedSuccessors(Task<T> task, int taskIndex, Map<T, Integer> taskIndexes, Reduction reduction) {
+        Set<Integer> successors = new LinkedHashSet<>();
+        for (Task<T> waitsForTask : task.getWaitsForTasks()) {
+            successors.add(taskIndexes.get(waitsForTask.getId()));
+        }
+        int group = reduction.firstGroups[taskIndex]; // the groups are numbered in the same order in reduce
+        for (Set<Task<T>> waitsForAnyOfTasks : task.getWaitsForAnyOfTasks()) {
+            if (!reduction.fulfilledGroups[group++]) {
+                for (Task<T> waitsForTask : waitsForAnyOfTasks) {
+                    successors.add(taskIndexes.get(waitsForTask.getId()));
+                }
+            }
+        }
+        successors.removeIf(successor -> reduction.unblocked[successor]);
+        int[] result = new int[successors.size()];
+        int i = 0;
+        for (int successor : successors) {
+            result[i++] = successor;
+        }
+        return result;
+    }
+
+    /**
+     * The result of {@link #reduce(List, Map)}: the unblocked tasks and the fulfilled "wait for any of" groups, numbered
+     * in the order of the tasks and their groups, starting at firstGroups[task index] per task.
+     */
+    private static final class Reduction {
+
+        private final boolean[] unblocked;
+        private final boolean[] fulfilledGroups;
+        private final int[] firstGroups;
+
+        Reduction(boolean[] unblocked, boolean[] fulfilledGroups, int[] firstGroups) {
+            this.unblocked = unblocked;
+            this.fulfilledGroups = fulfilledGroups;
+            this.firstGroups = firstGroups;
+        }
+    }
+
+    /**
+     * Tarjan's algorithm, iterative to avoid stack overflows on long dependency chains.
+     *
+     * @param successors the successors per node, null for nodes to ignore
+     * @return the component number per node, -1 for ignored nodes
+     */
+    private static int[] findStronglyConnectedComponents(int[][] successors) {
+        final int nodeCount = successors.length;
+        final int[] indexes = new int[nodeCount];
+        final int[] lowLinks = new int[nodeCount];
+        final int[] nextSuccessorPositions = new int[nodeCount];
+        final int[] components = new int[nodeCount];
+        final boolean[] onStack = new boolean[nodeCount];
+        Arrays.fill(indexes, -1);
+        Arrays.fill(components, -1);
+        final Deque<Integer> stack = new ArrayDeque<>();
+        final Deque<Integer> callStack = new ArrayDeque<>();
+        int index = 0;
+        int componentCount = 0;
+        for (int start = 0; start < nodeCount; start++) {
+            if (successors[start] == null || indexes[start] != -1) {
+                continue;
+            }
+            indexes[start] = lowLinks[start] = index++;
+            stack.push(start);
+            onStack[start] = true;
+            callStack.push(start);
+            while (!callStack.isEmpty()) {
+                int node = callStack.peek();
+                if (nextSuccessorPositions[node] < successors[node].length) {
+                    int successor = successors[node][nextSuccessorPositions[node]++];
+                    if (indexes[successor] == -1) {
+                        indexes[successor] = lowLinks[successor] = index++;
+                        stack.push(successor);
+                        onStack[successor] = true;
+                        callStack.push(successor);
+                    } else if (onStack[successor]) {
+                        lowLinks[node] = Math.min(lowLinks[node], indexes[successor]);
+                    }
+                } else {
+                    callStack.pop();
+                    if (!callStack.isEmpty()) {
+                        int caller = callStack.peek();
+                        lowLinks[caller] = Math.min(lowLinks[caller], lowLinks[node]);
+                    }
+                    if (lowLinks[node] == indexes[node]) {
+                        int member;
+                        do {
+                            member = stack.pop();
+                            onStack[member] = false;
+                            components[member] = componentCount;
+                        } while (member != node);
+                        componentCount++;
+                    }
+                }
+            }
+        }
+        return components;
     }
 
     private void findCycles(Graph<T> graph,
+                            Set<T> tasksNotInCycles,
                             Set<DeadlockCycle<T>> cycleCollector) {
         for (Task<T> startTask : graph.getTasks()) {
-            Set<Task<T>> visitedTasks = new HashSet<>();
-            findDeadlocksDepthFirst(startTask, startTask.getWaitsForTasks(), new LinkedList<>(), cycleCollector, visitedTasks);
+            if (!tasksNotInCycles.contains(startTask.getId())) {
+                Set<Task<T>> visitedTasks = new HashSet<>();
+                findDeadlocksDepthFirst(startTask, startTask.getWaitsForTasks(), new LinkedList<>(), cycleCollector, visitedTasks);
+            }
+        }
+    }
+
+    /**
+     * Kahn's algorithm on the "wait for" dependencies and "wait for any of" groups: the first layer contains the tasks
+     * waiting for nothing, every further layer the tasks waiting only for tasks of the previous layers and for at least
+     * one task of the previous layers per group. Every unfulfilled group counts as one blocker. Tasks which are never
+     * scheduled are blocked. Runs in O(V+E) using the reverse adjacency of the graph.
+     */
+    private List<Set<T>> calculateSchedulingLayers(Graph<T> graph, Set<T> scheduledTasksCollector) {
+        List<Set<T>> layers = new ArrayList<>();
+        Map<T, Integer> remainingBlockerCounts = new HashMap<>();
+        Map<T, List<Set<Task<T>>>> groupsByMember = new HashMap<>();
+        Map<Set<Task<T>>, Task<T>> groupOwners = new IdentityHashMap<>();
+        Set<Task<T>> layer = new TreeSet<>();
+        for (Task<T> task : graph.getTasks()) {
+            Set<Set<Task<T>>> groups = task.getWaitsForAnyOfTasks();
+            for (Set<Task<T>> group : groups) {
+                groupOwners.put(group, task);
+                for (Task<T> member : group) {
+                    groupsByMember.computeIfAbsent(member.getId(), memberId -> new ArrayList<>()).add(group);
+                }
+            }
+            int blockerCount = task.getWaitsForTasks().size() + groups.size();
+            if (blockerCount == 0) {
+                layer.add(task);
+            } else {
+                remainingBlockerCounts.put(task.getId(), blockerCount);
+            }
+        }
+        while (!layer.isEmpty()) {
+            Set<Task<T>> nextLayer = new TreeSet<>();
+            Set<T> layerIds = new LinkedHashSet<>(layer.size() * 2);
+            for (Task<T> task : layer) {
+                layerIds.add(task.getId());
+                for (Task<T> waitingTask : graph.getWaitedOnBy(task.getId())) {
+                    unblock(waitingTask, remainingBlockerCounts, nextLayer);
+                }
+                List<Set<Task<T>>> groups = groupsByMember.get(task.getId());
+                if (groups != null) {
+                    for (Set<Task<T>> group : groups) {
+                        // the first scheduled member fulfills the group
+                        Task<T> waitingTask = groupOwners.remove(group);
+                        if (waitingTask != null) {
+                            unblock(waitingTask, remainingBlockerCounts, nextLayer);
+                        }
+                    }
+                }
+            }
+            scheduledTasksCollector.addAll(layerIds);
+            layers.add(Collections.unmodifiableSet(layerIds));
+            layer = nextLayer;
+        }
+        return layers;
+    }
+
+    private static <T> void unblock(Task<T> waitingTask, Map<T, Integer> remainingBlockerCounts, Set<Task<T>> nextLayer) {
+        int remainingBlockerCount = remainingBlockerCounts.get(waitingTask.getId()) - 1;
+        if (remainingBlockerCount == 0) {
+            remainingBlockerCounts.remove(waitingTask.getId());
+            nextLayer.add(waitingTask);
+        } else {
+            remainingBlockerCounts.put(waitingTask.getId(), remainingBlockerCount);
         }
     }
 
@@ -124,4 +488,22 @@ public class DeadlockDetector<T> {
         }
         return result;
     }
+
+    private static final class DepthFirstSearchScratch {
+
+        private byte[] states = new byte[0];
+        private int[] stack = new int[0];
+        private int[] nextSuccessors = new int[0];
+
+        void prepare(int taskCount) {
+            if (states.length < taskCount) {
+                int capacity = Math.max(taskCount, states.length * 2);
+                states = new byte[capacity];
+                stack = new int[capacity];
+                nextSuccessors = new int[capacity];
+            } else {
+                Arrays.fill(states, 0, taskCount, UNVISITED);
+            }
+        }
+    }
 }
@@ -15,8 +15,13 @@
  */
 package ch.petikoch.libs.jtwfg;
 
+import ch.petikoch.libs.jtwfg.assertion.Preconditions;
+
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Represents a "task wait for model" graph.
@@ -30,15 +35,171 @@ import java.util.Set;
 public class Graph<T> {
 
     private final Set<Task<T>> tasks;
+    private final Map<T, Task<T>> taskIndex;
+    private final Map<T, Set<Task<T>>> waitedOnByIndex;
+
+    private volatile WaitsForAdjacency waitsForAdjacency; // lazily calculated, only needed by hasDeadlock
 
-    Graph(final Set<Task<T>> tasks) {
+    private final long builderId;
+    private final long version;
+    private int hashCode; // lazily calculated, 0 means not yet calculated
+
+    Graph(final Set<Task<T>> tasks, final long builderId, final long version) {
         this.tasks = Collections.unmodifiableSet(tasks);
+        this.builderId = builderId;
+        this.version = version;
+        this.taskIndex = new HashMap<>(tasks.size() * 2);
+        this.waitedOnByIndex = new HashMap<>(tasks.size() * 2);
+        for (Task<T> task : tasks) {
+            taskIndex.put(task.getId(), task);
+        }
+        for (Task<T> task : tasks) {
+            for (Task<T> waitsForTask : task.getWaitsForTasks()) {
+                Set<Task<T>> waitedOnBy = waitedOnByIndex.get(waitsForTask.getId());
+                if (waitedOnBy == null) {
+                    waitedOnBy = new TreeSet<>();
+                    waitedOnByIndex.put(waitsForTask.getId(), waitedOnBy);
+                }
+                waitedOnBy.add(task);
+            }
+        }
     }
 
     public Set<Task<T>> getTasks() {
         return tasks;
     }
 
+    /**
+     * @return the version of the {@link GraphBuilder} at the time this snapshot was built. Two snapshots of the same
+     * builder with the same version are equal.
+     * @see GraphBuilder#getVersion()
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param other may be null
+     * @return true, if the other graph is a snapshot of the same {@link GraphBuilder} with the same version. Runs in
+     * O(1), unlike {@link #equals(Object)} in case of different builders or versions.
+     */
+    public boolean isSameVersion(Graph<?> other) {
+        return other != null && builderId == other.builderId && version == other.version;
+    }
+
+    long getBuilderId() {
+        return builderId;
+    }
+
+    /**
+     * Looks up a task by its ID in O(1).
+     *
+     * @param taskId not null
+     * @return the task with the given ID or null, if there is no such task in the graph
+     * @throws java.lang.IllegalArgumentException in case of taskId is null
+     */
+    public Task<T> getTask(T taskId) {
+        Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
+        return taskIndex.get(taskId);
+    }
+
+    /**
+     * @param taskId not null
+     * @return true, if the graph contains a task with the given ID
+     * @throws java.lang.IllegalArgumentException in case of taskId is null
+     */
+    public boolean hasTask(T taskId) {
+        return getTask(taskId) != null;
+    }
+
+    /**
+     * The reverse of {@link Task#getWaitsForTasks()}: the tasks which are waiting on the given task. The "wait for
+     * any of" groups of {@link Task#getWaitsForAnyOfTasks()} are not considered.
+     *
+     * @param taskId not null
+     * @return an unmodifiable set of the tasks waiting on the given task. If Type T implements comparable, the Set is
+     * ordered.
+     * @throws java.lang.IllegalArgumentException in case of taskId is null or unknown
+     */
+    public Set<Task<T>> getWaitedOnBy(T taskId) {
+        checkTaskExists(taskId);
+        Set<Task<T>> waitedOnBy = waitedOnByIndex.get(taskId);
+        if (waitedOnBy == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(waitedOnBy);
+    }
+
+    /**
+     * @param taskId not null
+     * @return the number of tasks waiting on the given task (without the "wait for any of" groups)
+     * @throws java.lang.IllegalArgumentException in case of taskId is null or unknown
+     */
+    public int getInDegree(T taskId) {
+        checkTaskExists(taskId);
+        Set<Task<T>> waitedOnBy = waitedOnByIndex.get(taskId);
+        return waitedOnBy == null ? 0 : waitedOnBy.size();
+    }
+
+    /**
+     * @param taskId not null
+     * @return the number of tasks the given task is waiting for (without the "wait for any of" groups)
+     * @throws java.lang.IllegalArgumentException in case of taskId is null or unknown
+     */
+    public int getOutDegree(T taskId) {
+        return checkTaskExists(taskId).getWaitsForTasks().size();
+    }
+
+    /**
+     * @return the compact adjacency of the "wait for" dependencies, calculated on the first call
+     */
+    WaitsForAdjacency getWaitsForAdjacency() {
+        WaitsForAdjacency result = waitsForAdjacency;
+        if (result == null) {
+            result = new WaitsForAdjacency(tasks); // a concurrent caller may calculate the same again, that's fine
+            waitsForAdjacency = result;
+        }
+        return result;
+    }
+
+    private Task<T> checkTaskExists(T taskId) {
+        Task<T> task = getTask(taskId);
+        if (task == null) {
+            throw new IllegalArgumentException("taskId " + taskId + " is unknown");
+        }
+        return task;
+    }
+
+    /**
+     * Compact adjacency of the "wait for" dependencies: the successors of the i-th task (in iteration order of the
+     * tasks) are indexes[offsets[i]] until (exclusive) indexes[offsets[i + 1]].
+     */
+    static final class WaitsForAdjacency {
+
+        final int[] offsets;
+        final int[] indexes;
+
+        private <T> WaitsForAdjacency(Set<Task<T>> tasks) {
+            final Map<T, Integer> positions = new HashMap<>(tasks.size() * 2);
+            int edgeCount = 0;
+            for (Task<T> task : tasks) {
+                positions.put(task.getId(), positions.size());
+                edgeCount += task.getWaitsForTasks().size();
+            }
+            offsets = new int[tasks.size() + 1];
+            indexes = new int[edgeCount];
+            int position = 0;
+            int edge = 0;
+            for (Task<T> task : tasks) {
+                offsets[position++] = edge;
+                for (Task<T> waitsForTask : task.getWaitsForTasks()) {
+                    indexes[edge++] = positions.get(waitsForTask.getId());
+                }
+            }
+            offsets[position] = edge;
+        }
+    }
+
     // generated by IntelliJ IDEA
     @SuppressWarnings("RedundantIfStatement")
     @Override
@@ -48,15 +209,20 @@ public class Graph<T> {
 
         final Graph graph = (Graph) o;
 
+        if (isSameVersion(graph)) return true;
         if (!tasks.equals(graph.tasks)) return false;
 
         return true;
     }
 
-    // generated by IntelliJ IDEA
     @Override
     public int hashCode() {
-        return tasks.hashCode();
+        int result = hashCode;
+        if (result == 0) {
+            result = tasks.hashCode();
+            hashCode = result;
+        }
+        return result;
     }
 
     // generated by IntelliJ IDEA
@@ -17,15 +17,39 @@ package ch.petikoch.libs.jtwfg;
 
 import ch.petikoch.libs.jtwfg.assertion.Preconditions;
 
-import java.util.Collection;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
 
 /**
  * A builder class for graph instance creation. Can be used concurrently by different threads which create together the
  * graph.
  * <p>
+ * Optionally, the task IDs can be held only weakly (like the keys of a {@link java.util.WeakHashMap}): as soon as a
+ * task ID object is not referenced anymore outside of the builder and garbage collected, the task is removed like with
+ * {@link #removeTask(Object)}. This protects long running applications from memory leaks in case of forgotten
+ * {@link #removeTask(Object)} calls. Don't use it with task IDs which are never garbage collected, like string
+ * literals or cached boxed numbers.
+ * <p>
+ * Optionally, the number of tasks and dependencies can be limited with {@link CapacityLimits}, to bound the memory
+ * usage. The current usage is available through {@link #getTaskCount()}, {@link #getDependencyCount()} and {@link
+ * #getEstimatedFootprintBytes()}.
+ * <p>
+ * To survive a restart of the process, the changes can be journaled to disk with a {@link GraphBuilderJournal}.
+ * <p>
  * Thread-safe.
  *
  * @param <T> The type of the ID of the tasks. Something with a meaningful {@link Object#equals(Object)} and {@link
@@ -34,20 +58,72 @@ import java.util.TreeSet;
  */
 public class GraphBuilder<T> {
 
-    private final Map<T, Task<T>> taskMap = new LinkedHashMap<>();
+    /**
+     * The estimated heap usage per task (on a 64 bit JVM with compressed references), used for {@link
+     * #getEstimatedFootprintBytes()}.
+     */
+    public static final int ESTIMATED_BYTES_PER_TASK = 400;
+
+    /**
+     * The estimated heap usage per dependency (on a 64 bit JVM with compressed references), used for {@link
+     * #getEstimatedFootprintBytes()}.
+     */
+    public static final int ESTIMATED_BYTES_PER_DEPENDENCY = 160;
+
+    private static final AtomicLong builderIdSequence = new AtomicLong();
+
+    // key is the task id, or a WeakTaskId in case of weak task ids
+    private final Map<Object, Node<T>> taskMap = new LinkedHashMap<>();
+    private final ReferenceQueue<T> collectedTaskIds; // null in case of strong task ids
+    private final long builderId = builderIdSequence.incrementAndGet();
+    private long version; // incremented on every mutation of the graph
+    private int dependencyCount; // "wait for" dependencies plus the tasks in the "wait for any of" groups
+    private final CapacityLimits capacityLimits; // null in case of no limits
+    private boolean softLimitExceeded;
+    private GraphMutationListener<T> mutationListener; // null without journal
 
     private final Object internalLock = new Object();
 
+    /**
+     * Creates a builder holding the task IDs strongly.
+     */
+    public GraphBuilder() {
+        this(false);
+    }
+
+    /**
+     * @param weakTaskIds true, to hold the task IDs only weakly, so that tasks are removed automatically once their ID
+     *                    is garbage collected
+     */
+    public GraphBuilder(boolean weakTaskIds) {
+        this(weakTaskIds, null);
+    }
+
+    /**
+     * @param weakTaskIds    true, to hold the task IDs only weakly, so that tasks are removed automatically once their
+     *                       ID is garbage collected
+     * @param capacityLimits the limits for the number of tasks and dependencies, null for no limits
+     */
+    public GraphBuilder(boolean weakTaskIds, /* Nullable */ CapacityLimits capacityLimits) {
+        this.collectedTaskIds = weakTaskIds ? new ReferenceQueue<>() : null;
+        this.capacityLimits = capacityLimits;
+    }
+
     /**
      * Adds a task in the graph, if not yet present.
      *
      * @param taskId not null
      * @return the GraphBuilder instance itself
      * @throws java.lang.IllegalArgumentException in case of taskId is null
+     * @throws java.lang.IllegalStateException    in case of the capacity limits would be exceeded
      */
     public GraphBuilder<T> addTask(T taskId) {
+        Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
         synchronized (internalLock) {
+            removeCollectedTasks();
+            ensureCapacity(() -> countMissingTasks(Collections.singleton(taskId)), () -> 0);
             getOrAddTaskRepresentator(taskId);
+            checkSoftLimits();
         }
         return this;
     }
@@ -63,14 +139,15 @@ public class GraphBuilder<T> {
         Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
         boolean result;
         synchronized (internalLock) {
-            result = taskMap.containsKey(taskId);
+            removeCollectedTasks();
+            result = taskMap.containsKey(toKey(taskId));
         }
         return result;
     }
 
     /**
      * Removes a task from the graph. Removes also of course all "incoming" "wait for" dependencies from other tasks
-     * referencing this one.
+     * referencing this one, including the "wait for any of" groups containing this task (they are fulfilled).
      *
      * @param taskId not null
      * @return the GraphBuilder instance itself
@@ -79,11 +156,12 @@ public class GraphBuilder<T> {
     public GraphBuilder<T> removeTask(T taskId) {
         Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
         synchronized (internalLock) {
-            Task<T> toRemove = taskMap.get(taskId);
+            removeCollectedTasks();
+            Node<T> toRemove = taskMap.remove(toKey(taskId));
             if (toRemove != null) {
-                taskMap.remove(taskId);
-                for (Task<T> otherTasks : taskMap.values()) {
-                    otherTasks.removeWaitFor(toRemove);
+                removeDependencies(toRemove);
+                if (mutationListener != null) {
+                    mutationListener.taskRemoved(taskId);
                 }
             } else {
                 throw new IllegalArgumentException("taskId " + taskId + " is unknown and can't be removed");
@@ -100,8 +178,9 @@ public class GraphBuilder<T> {
     public GraphBuilder<T> removeTasks(Iterable<T> taskIds) {
         if (null != taskIds) {
             synchronized (internalLock) {
+                removeCollectedTasks();
                 for (T taskId : taskIds) {
-                    if (!taskMap.containsKey(taskId)) {
+                    if (!taskMap.containsKey(toKey(taskId))) {
                         throw new IllegalArgumentException("taskId " + taskId + " is unknown and can't be removed. None of the given tasks " + taskIds + " were removed");
                     }
                 }
@@ -122,14 +201,50 @@ public class GraphBuilder<T> {
      */
     public GraphBuilder<T> removeTaskWaitForDependency(T taskId, T waitingOnTaskId) {
         synchronized (internalLock) {
-            Task<T> task = taskMap.get(taskId);
-            Preconditions.checkArgumentNotNull(task, "taskId " + taskId + " is unknown");
-            Task<T> waitingOnTask = taskMap.get(waitingOnTaskId);
-            Preconditions.checkArgumentNotNull(waitingOnTask, "taskId " + waitingOnTaskId + " is unknown");
-            boolean removed = task.removeWaitFor(waitingOnTask);
+            removeCollectedTasks();
+            Node<T> task = getTaskRepresentator(taskId);
+            Node<T> waitingOnTask = getTaskRepresentator(waitingOnTaskId);
+            boolean removed = task.waitsFor.remove(waitingOnTask);
             if (!removed) {
                 throw new IllegalArgumentException(taskId + " is existing but was not waiting on " + waitingOnTaskId);
             }
+            waitingOnTask.waitedOnBy.remove(task);
+            dependencyCount--;
+            version++;
+            if (mutationListener != null) {
+                mutationListener.waitForRemoved(taskId, waitingOnTaskId);
+            }
+            capacityFreed();
+        }
+        return this;
+    }
+
+    /**
+     * Removes the "wait for any of" group (and only the group, not the tasks itself).
+     *
+     * @param taskId           not null
+     * @param waitingOnTaskIds not null, the same task ids as given in {@link #addTaskWaitsForAnyOf(Object, Iterable)}
+     * @return the GraphBuilder instance itself
+     */
+    public GraphBuilder<T> removeTaskWaitForAnyOfDependency(T taskId, Iterable<T> waitingOnTaskIds) {
+        Preconditions.checkArgumentNotNull(waitingOnTaskIds, "waitingOnTaskIds must not be null");
+        synchronized (internalLock) {
+            removeCollectedTasks();
+            Node<T> task = getTaskRepresentator(taskId);
+            Set<Node<T>> waitingOnTasks = new LinkedHashSet<>();
+            for (T waitingOnTaskId : waitingOnTaskIds) {
+                waitingOnTasks.add(getTaskRepresentator(waitingOnTaskId));
+            }
+            Group<T> group = task.waitsForAnyOf.get(waitingOnTasks);
+            if (group == null) {
+                throw new IllegalArgumentException(taskId + " is existing but was not waiting on any of " + waitingOnTaskIds);
+            }
+            removeGroup(group);
+            version++;
+            if (mutationListener != null) {
+                mutationListener.waitForAnyOfRemoved(taskId, toList(waitingOnTaskIds));
+            }
+            capacityFreed();
         }
         return this;
     }
@@ -139,12 +254,16 @@ public class GraphBuilder<T> {
      *
      * @param taskIds not null, may be empty
      * @return the GraphBuilder instance itself
+     * @throws java.lang.IllegalStateException in case of the capacity limits would be exceeded
      */
     public GraphBuilder<T> addTasks(Iterable<T> taskIds) {
         synchronized (internalLock) {
+            removeCollectedTasks();
+            ensureCapacity(() -> countMissingTasks(taskIds), () -> 0);
             for (T task : taskIds) {
                 getOrAddTaskRepresentator(task);
             }
+            checkSoftLimits();
         }
         return this;
     }
@@ -155,16 +274,118 @@ public class GraphBuilder<T> {
      * @param taskId          not null
      * @param waitingOnTaskId not null
      * @return the GraphBuilder instance itself
+     * @throws java.lang.IllegalStateException in case of the capacity limits would be exceeded
      */
     public GraphBuilder<T> addTaskWaitsFor(T taskId, T waitingOnTaskId) {
+        Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
+        Preconditions.checkArgumentNotNull(waitingOnTaskId, "taskId must not be null");
         synchronized (internalLock) {
-            Task<T> task = getOrAddTaskRepresentator(taskId);
-            Task<T> waitingOnTask = getOrAddTaskRepresentator(waitingOnTaskId);
-            task.addWaitFor(waitingOnTask);
+            removeCollectedTasks();
+            ensureCapacity(() -> countMissingTasks(Arrays.asList(taskId, waitingOnTaskId)),
+                           () -> hasWaitFor(taskId, waitingOnTaskId) ? 0 : 1);
+            Node<T> task = getOrAddTaskRepresentator(taskId);
+            Node<T> waitingOnTask = getOrAddTaskRepresentator(waitingOnTaskId);
+            if (task.waitsFor.add(waitingOnTask)) {
+                waitingOnTask.waitedOnBy.add(task);
+                dependencyCount++;
+                version++;
+                if (mutationListener != null) {
+                    mutationListener.waitForAdded(taskId, waitingOnTaskId);
+                }
+            }
+            checkSoftLimits();
         }
         return this;
     }
 
+    /**
+     * Adds a "wait for any of" (OR) group between a task and other tasks in the graph, if not yet present. The task is
+     * waiting until at least one of the other tasks is done. See {@link DeadlockDetector#analyzeKnots(Graph)}.
+     *
+     * @param taskId           not null
+     * @param waitingOnTaskIds not null, not empty
+     * @return the GraphBuilder instance itself
+     * @throws java.lang.IllegalStateException in case of the capacity limits would be exceeded
+     */
+    public GraphBuilder<T> addTaskWaitsForAnyOf(T taskId, Iterable<T> waitingOnTaskIds) {
+        Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
+        Preconditions.checkArgumentNotNull(waitingOnTaskIds, "waitingOnTaskIds must not be null");
+        Preconditions.checkArgument(waitingOnTaskIds.iterator().hasNext(), "waitingOnTaskIds must not be empty");
+        synchronized (internalLock) {
+            removeCollectedTasks();
+            ensureCapacity(() -> countMissingTasks(concat(taskId, waitingOnTaskIds)),
+                           () -> countMissingWaitForAnyOfDependencies(taskId, waitingOnTaskIds));
+            Node<T> task = getOrAddTaskRepresentator(taskId);
+            Set<Node<T>> waitingOnTasks = new LinkedHashSet<>();
+            for (T waitingOnTaskId : waitingOnTaskIds) {
+                waitingOnTasks.add(getOrAddTaskRepresentator(waitingOnTaskId));
+            }
+            if (!task.waitsForAnyOf.containsKey(waitingOnTasks)) {
+                Group<T> group = new Group<>(task, waitingOnTasks);
+                task.waitsForAnyOf.put(group.members, group);
+                for (Node<T> waitingOnTask : waitingOnTasks) {
+                    waitingOnTask.containedInGroups.add(group);
+                }
+                dependencyCount += waitingOnTasks.size();
+                version++;
+                if (mutationListener != null) {
+                    mutationListener.waitForAnyOfAdded(taskId, toList(waitingOnTaskIds));
+                }
+            }
+            checkSoftLimits();
+        }
+        return this;
+    }
+
+    /**
+     * The version of the graph in this builder. It is incremented on every change of the graph (adding or removing
+     * tasks or dependencies), but not by calls which don't change anything (e.g. adding an already present task).
+     *
+     * @return the current version
+     * @see Graph#getVersion()
+     */
+    public long getVersion() {
+        synchronized (internalLock) {
+            removeCollectedTasks();
+            return version;
+        }
+    }
+
+    /**
+     * @return the current number of tasks. Approximate with weakly held task ids: a task whose ID was garbage collected
+     * is counted until the garbage collector enqueues its reference (or until the next {@link #build()}).
+     */
+    public int getTaskCount() {
+        synchronized (internalLock) {
+            removeCollectedTasks();
+            return taskMap.size();
+        }
+    }
+
+    /**
+     * @return the current number of dependencies: the "wait for" dependencies plus the tasks in the "wait for any of"
+     * groups. Approximate with weakly held task ids, like {@link #getTaskCount()}.
+     */
+    public int getDependencyCount() {
+        synchronized (internalLock) {
+            removeCollectedTasks();
+            return dependencyCount;
+        }
+    }
+
+    /**
+     * A rough estimation of the heap usage of this builder, based on {@link #ESTIMATED_BYTES_PER_TASK} and {@link
+     * #ESTIMATED_BYTES_PER_DEPENDENCY}. Costs O(1).
+     *
+     * @return the estimated heap usage in bytes
+     */
+    public long getEstimatedFootprintBytes() {
+        synchronized (internalLock) {
+            removeCollectedTasks();
+            return (long) taskMap.size() * ESTIMATED_BYTES_PER_TASK + (long) dependencyCount * ESTIMATED_BYTES_PER_DEPENDENCY;
+        }
+    }
+
     /**
      * Creates a graph instance. It creates an unmodifiable "snapshot" of the current graph situation. The
      * graph-snapshot wont change, even if you continue to populate the graph with the same builder instance with the
@@ -175,43 +396,356 @@ public class GraphBuilder<T> {
      * @return Graph
      */
     public Graph<T> build() {
+        return build(null);
+    }
+
+    /**
+     * Like {@link #build()}, runs additionally the given action while no other thread can mutate the graph.
+     */
+    Graph<T> build(/* Nullable */ Runnable whileLocked) {
         final TreeSet<Task<T>> tasksSnapshotCopy;
+        final long snapshotVersion;
         synchronized (internalLock) {
-            final Collection<Task<T>> tasks = taskMap.values();
-            tasksSnapshotCopy = copy(tasks);
+            removeCollectedTasks();
+            tasksSnapshotCopy = copy();
+            snapshotVersion = version;
+            if (whileLocked != null) {
+                whileLocked.run();
+            }
+        }
+        return new Graph<>(tasksSnapshotCopy, builderId, snapshotVersion);
+    }
+
+    /**
+     * @param mutationListener the listener to notify about every change of the graph (while holding the internal lock),
+     *                         replaces the current listener
+     * @throws java.lang.IllegalArgumentException in case of weakly held task ids, since their removal can't be notified
+     */
+    void setMutationListener(GraphMutationListener<T> mutationListener) {
+        Preconditions.checkArgumentNotNull(mutationListener, "mutationListener must not be null");
+        Preconditions.checkArgument(collectedTaskIds == null, "The mutations of a GraphBuilder with weakly held task ids can't be listened to");
+        synchronized (internalLock) {
+            this.mutationListener = mutationListener;
+        }
+    }
+
+    /**
+     * Removes the given listener, if it is still the current one (and not replaced by another listener meanwhile).
+     * No notification reaches the listener anymore once this method returns.
+     */
+    void removeMutationListener(GraphMutationListener<T> mutationListener) {
+        synchronized (internalLock) {
+            if (this.mutationListener == mutationListener) {
+                this.mutationListener = null;
+            }
+        }
+    }
+
+    private void ensureCapacity(IntSupplier missingTasks, IntSupplier missingDependencies) {
+        if (capacityLimits == null) {
+            return;
+        }
+        final long deadline = System.nanoTime() + capacityLimits.getBlockTimeoutNanos();
+        boolean calledBack = false;
+        while (taskMap.size() + missingTasks.getAsInt() > capacityLimits.getMaxTasks() ||
+               dependencyCount + missingDependencies.getAsInt() > capacityLimits.getMaxDependencies()) {
+            if (capacityLimits.getOverflowPolicy() == CapacityLimits.OverflowPolicy.BLOCK) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos > 0) {
+                    waitForFreedCapacity(remainingNanos);
+                    removeCollectedTasks();
+                    continue;
+                }
+            } else if (capacityLimits.getOverflowPolicy() == CapacityLimits.OverflowPolicy.CALLBACK && !calledBack) {
+                calledBack = true;
+                capacityLimits.getCapacityListener().hardLimitReached(this);
+                continue;
+            }
+            throw new IllegalStateException("Capacity limits exceeded with " + taskMap.size() + " tasks and " + dependencyCount + " dependencies: " + capacityLimits);
         }
-        return new Graph<>(tasksSnapshotCopy);
     }
 
-    private Task<T> getOrAddTaskRepresentator(T taskId) {
+    private void waitForFreedCapacity(long timeoutNanos) {
+        try {
+            // waits at most 10ms, to notice also tasks removed because of garbage collected task ids
+            TimeUnit.NANOSECONDS.timedWait(internalLock, Math.min(timeoutNanos, TimeUnit.MILLISECONDS.toNanos(10)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for free capacity", e);
+        }
+    }
+
+    private void capacityFreed() {
+        if (capacityLimits != null) {
+            internalLock.notifyAll();
+            checkSoftLimits();
+        }
+    }
+
+    private void checkSoftLimits() {
+        if (capacityLimits != null) {
+            boolean exceeded = taskMap.size() > capacityLimits.getSoftMaxTasks() || dependencyCount > capacityLimits.getSoftMaxDependencies();
+            if (exceeded && !softLimitExceeded) {
+                softLimitExceeded = true;
+                if (capacityLimits.getCapacityListener() != null) {
+                    capacityLimits.getCapacityListener().softLimitExceeded(this);
+                }
+            } else if (!exceeded) {
+                softLimitExceeded = false;
+            }
+        }
+    }
+
+    private int countMissingTasks(Iterable<T> taskIds) {
+        Set<Object> missingKeys = new HashSet<>();
+        for (T taskId : taskIds) {
+            Object key = toKey(taskId);
+            if (!taskMap.containsKey(key)) {
+                missingKeys.add(key);
+            }
+        }
+        return missingKeys.size();
+    }
+
+    private boolean hasWaitFor(T taskId, T waitingOnTaskId) {
+        Node<T> task = taskMap.get(toKey(taskId));
+        Node<T> waitingOnTask = taskMap.get(toKey(waitingOnTaskId));
+        return task != null && waitingOnTask != null && task.waitsFor.contains(waitingOnTask);
+    }
+
+    private int countMissingWaitForAnyOfDependencies(T taskId, Iterable<T> waitingOnTaskIds) {
+        Set<Object> waitingOnKeys = new HashSet<>();
+        Set<Node<T>> waitingOnTasks = new LinkedHashSet<>();
+        for (T waitingOnTaskId : waitingOnTaskIds) {
+            Object key = toKey(waitingOnTaskId);
+            waitingOnKeys.add(key);
+            waitingOnTasks.add(taskMap.get(key));
+        }
+        Node<T> task = taskMap.get(toKey(taskId));
+        boolean exists = task != null && !waitingOnTasks.contains(null) && task.waitsForAnyOf.containsKey(waitingOnTasks);
+        return exists ? 0 : waitingOnKeys.size();
+    }
+
+    private static <T> List<T> toList(Iterable<T> taskIds) {
+        List<T> result = new ArrayList<>();
+        for (T taskId : taskIds) {
+            result.add(taskId);
+        }
+        return result;
+    }
+
+    private static <T> Iterable<T> concat(T taskId, Iterable<T> taskIds) {
+        List<T> result = new ArrayList<>();
+        result.add(taskId);
+        for (T otherTaskId : taskIds) {
+            result.add(otherTaskId);
+        }
+        return result;
+    }
+
+    private Object toKey(T taskId) {
         Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
+        return collectedTaskIds != null ? new LookupKey<>(taskId) : taskId;
+    }
 
-        Task<T> taskRepresentator = taskMap.get(taskId);
+    private Node<T> getTaskRepresentator(T taskId) {
+        Node<T> taskRepresentator = taskId != null ? taskMap.get(toKey(taskId)) : null;
+        Preconditions.checkArgumentNotNull(taskRepresentator, "taskId " + taskId + " is unknown");
+        return taskRepresentator;
+    }
+
+    private Node<T> getOrAddTaskRepresentator(T taskId) {
+        Preconditions.checkArgumentNotNull(taskId, "taskId must not be null");
+
+        Node<T> taskRepresentator = taskMap.get(toKey(taskId));
         if (taskRepresentator == null) {
-            taskRepresentator = new Task<>(taskId);
-            taskMap.put(taskId, taskRepresentator);
+            Object key = collectedTaskIds != null ? new WeakTaskId<>(taskId, collectedTaskIds) : taskId;
+            taskRepresentator = new Node<>(key);
+            taskMap.put(key, taskRepresentator);
+            version++;
+            if (mutationListener != null) {
+                mutationListener.taskAdded(taskId);
+            }
         }
 
         return taskRepresentator;
     }
 
-    private static <T> TreeSet<Task<T>> copy(final Collection<Task<T>> originalTasks) {
-        Map<Task<T>, Task<T>> result = new LinkedHashMap<>(originalTasks.size());
-        recursiveCopy(originalTasks, result);
-        return new TreeSet<>(result.values());
+    /**
+     * Removes the tasks whose weakly held IDs were garbage collected. Costs O(1) per dependency of a removed task.
+     */
+    private void removeCollectedTasks() {
+        if (collectedTaskIds != null) {
+            Reference<? extends T> collectedTaskId;
+            while ((collectedTaskId = collectedTaskIds.poll()) != null) {
+                Node<T> toRemove = taskMap.remove(collectedTaskId);
+                if (toRemove != null) { // null, if removed explicitly before
+                    removeDependencies(toRemove);
+                }
+            }
+        }
+    }
+
+    private void removeNodes(List<Node<T>> nodes) {
+        for (Node<T> node : nodes) {
+            taskMap.remove(node.key);
+            removeDependencies(node);
+        }
+    }
+
+    private void removeDependencies(Node<T> toRemove) {
+        boolean waitsForItself = toRemove.waitsFor.contains(toRemove);
+        dependencyCount -= toRemove.waitedOnBy.size() + toRemove.waitsFor.size() - (waitsForItself ? 1 : 0);
+        for (Node<T> waitingTask : toRemove.waitedOnBy) {
+            waitingTask.waitsFor.remove(toRemove);
+        }
+        for (Node<T> waitingOnTask : toRemove.waitsFor) {
+            waitingOnTask.waitedOnBy.remove(toRemove);
+        }
+        for (Group<T> group : new ArrayList<>(toRemove.containedInGroups)) {
+            removeGroup(group);
+        }
+        for (Group<T> group : new ArrayList<>(toRemove.waitsForAnyOf.values())) {
+            removeGroup(group);
+        }
+        version++;
+        capacityFreed();
+    }
+
+    private void removeGroup(Group<T> group) {
+        dependencyCount -= group.members.size();
+        group.owner.waitsForAnyOf.remove(group.members);
+        for (Node<T> member : group.members) {
+            member.containedInGroups.remove(group);
+        }
     }
 
-    private static <T> void recursiveCopy(Collection<Task<T>> originalTasks, Map<Task<T>, Task<T>> result) {
-        for (Task<T> originalTask : originalTasks) {
-            Task<T> copiedTask = result.get(originalTask);
-            if (null == copiedTask) {
-                copiedTask = new Task<>(originalTask.getId());
-                result.put(originalTask, copiedTask);
-                recursiveCopy(originalTask.getWaitsForTasks(), result);
-                for (Task<T> originalWaitForTask : originalTask.getWaitsForTasks()) {
-                    copiedTask.addWaitFor(result.get(originalWaitForTask));
+    /**
+     * Copies the graph. Nodes whose weakly held task id is already garbage collected are removed first (changing the
+     * version), the other task ids are strongly held by the copies from then on, so the copy matches the version.
+     */
+    private TreeSet<Task<T>> copy() {
+        Map<Node<T>, Task<T>> result = new LinkedHashMap<>();
+        List<Node<T>> clearedNodes = new ArrayList<>();
+        for (Node<T> node : taskMap.values()) {
+            T taskId = node.getId();
+            if (taskId != null) {
+                result.put(node, new Task<>(taskId));
+            } else {
+                clearedNodes.add(node);
+            }
+        }
+        removeNodes(clearedNodes);
+        for (Map.Entry<Node<T>, Task<T>> entry : result.entrySet()) {
+            Node<T> node = entry.getKey();
+            Task<T> copiedTask = entry.getValue();
+            for (Node<T> waitForNode : node.waitsFor) {
+                copiedTask.addWaitFor(result.get(waitForNode));
+            }
+            for (Group<T> group : node.waitsForAnyOf.values()) {
+                Set<Task<T>> copiedWaitForAnyOfTasks = new TreeSet<>();
+                for (Node<T> waitForNode : group.members) {
+                    copiedWaitForAnyOfTasks.add(result.get(waitForNode));
                 }
+                copiedTask.addWaitForAnyOf(copiedWaitForAnyOfTasks);
             }
         }
+        return new TreeSet<>(result.values());
+    }
+
+    /**
+     * The builder internal representation of a task. Refers to the task ID only through the key, so that it can be
+     * held weakly. Knows also the "incoming" dependencies, so that a task can be removed in O(number of dependencies).
+     */
+    private static final class Node<T> {
+
+        private final Object key;
+        private final Set<Node<T>> waitsFor = new LinkedHashSet<>();
+        private final Set<Node<T>> waitedOnBy = new LinkedHashSet<>();
+        private final Map<Set<Node<T>>, Group<T>> waitsForAnyOf = new LinkedHashMap<>();
+        private final Set<Group<T>> containedInGroups = new LinkedHashSet<>();
+
+        Node(Object key) {
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        T getId() {
+            return key instanceof WeakTaskId ? ((WeakTaskId<T>) key).get() : (T) key;
+        }
+    }
+
+    /**
+     * A "wait for any of" group of a task.
+     */
+    private static final class Group<T> {
+
+        private final Node<T> owner;
+        private final Set<Node<T>> members;
+
+        Group(Node<T> owner, Set<Node<T>> members) {
+            this.owner = owner;
+            this.members = members;
+        }
+    }
+
+    /**
+     * A weakly held task ID with the {@link Object#equals(Object)} and {@link Object#hashCode()} semantics of the task
+     * ID itself, as long as it is not garbage collected.
+     */
+    private static final class WeakTaskId<T> extends WeakReference<T> {
+
+        private final int hashCode;
+
+        WeakTaskId(T taskId, ReferenceQueue<? super T> queue) {
+            super(taskId, queue);
+            this.hashCode = taskId.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            final Object taskId = get();
+            if (o instanceof LookupKey) {
+                return taskId != null && taskId.equals(((LookupKey) o).taskId);
+            }
+            if (o == null || getClass() != o.getClass()) return false;
+
+            return taskId != null && taskId.equals(((WeakTaskId) o).get());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * A strongly held task ID to look up a {@link WeakTaskId} without allocating a {@link WeakReference}, like {@link
+     * java.util.WeakHashMap} does. Never stored in the task map.
+     */
+    private static final class LookupKey<T> {
+
+        private final T taskId;
+
+        LookupKey(T taskId) {
+            this.taskId = taskId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o instanceof WeakTaskId) {
+                return taskId.equals(((WeakTaskId) o).get());
+            }
+            if (o == null || getClass() != o.getClass()) return false;
+
+            return taskId.equals(((LookupKey) o).taskId);
+        }
+
+        @Override
+        public int hashCode() {
+            return taskId.hashCode();
+        }
     }
 }
@@ -0,0 +1,758 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+import ch.petikoch.libs.jtwfg.assertion.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only journal of the changes of the graph in a {@link GraphBuilder}, which allows to rebuild the graph
+ * after a restart of the process (or offline, e.g. to re-analyze a past incident) using {@link #replay(Path, TaskIdCodec)}.
+ * <p>
+ * The changes are collected in batches in memory and appended to a memory-mapped journal file by a background thread
+ * when a batch is full, on {@link #flush()} and periodically. The files are never written while holding the lock of
+ * the graph builder. The journal gets compacted into a snapshot of the graph on {@link #compact()}
+ * and periodically, as soon as it exceeds a threshold. The files are stored in their own directory as generations: a
+ * generation consists of a snapshot and a journal with the changes after it. A compaction starts a new generation and
+ * deletes the older ones once its snapshot is written completely, so there is always a consistent state on disk.
+ * <p>
+ * The journal is attached to the graph builder on construction, which starts with a compaction, i.e. the files in the
+ * directory describe afterwards the current graph of the builder. To continue after a restart, replay the directory
+ * first and attach the journal to the replayed builder. Graph builders with weakly held task ids are not supported.
+ * <p>
+ * A failure to write the journal never fails the change of the graph builder. Instead, the journal stops journaling,
+ * since it would be incomplete from then on, and reports the failure on every further {@link #flush()}, {@link
+ * #compact()} and {@link #close()}. The files keep the consistent state up to the last written batch. Attach a new
+ * journal to continue journaling.
+ * <p>
+ * Thread-safe.
+ *
+ * @param <T> The type of the ID of the tasks.
+ */
+public class GraphBuilderJournal<T> implements Closeable {
+
+    private static final int MAGIC = 0x6A747766; // "jtwf"
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = Integer.BYTES + 1;
+
+    private static final String FILE_PREFIX = "jtwfg-";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final long MAPPED_REGION_BYTES = 8L * 1024 * 1024;
+    private static final long MAX_MAPPED_READ_BYTES = 1L << 30;
+
+    // record types, 0 marks the end (the not yet written part of a memory-mapped journal is zeroed)
+    private static final byte END = 0;
+    private static final byte ADD_TASK = 1;
+    private static final byte REMOVE_TASK = 2;
+    private static final byte ADD_WAIT_FOR = 3;
+    private static final byte REMOVE_WAIT_FOR = 4;
+    private static final byte ADD_WAIT_FOR_ANY_OF = 5;
+    private static final byte REMOVE_WAIT_FOR_ANY_OF = 6;
+
+    private final GraphBuilder<T> graphBuilder;
+    private final Path directory;
+    private final TaskIdCodec<T> codec;
+    private final int batchSizeBytes;
+    private final long compactionThresholdBytes;
+
+    // lock order: compactionLock, writeLock, lock of the graph builder, internalLock
+    private final Object compactionLock = new Object();
+    private final Object writeLock = new Object(); // guards the files
+    private final Object internalLock = new Object(); // guards the batches and the state, never held during disk I/O
+    private final GraphMutationListener<T> listener = new JournalingListener();
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by internalLock
+    private RecordWriter batch;
+    private RecordWriter writingBatch; // empty, except while written by the holder of the writeLock
+    private boolean writeScheduled;
+    private long journalBytes; // of the current generation, including the batches handed over to be written
+    private IOException failure; // the journal is incomplete from then on
+    private IOException backgroundFailure; // of a periodic compaction, not yet reported
+    private boolean attached;
+    private boolean closed;
+
+    // guarded by writeLock
+    private long generation;
+    private FileChannel journalChannel;
+    private MappedByteBuffer journalRegion;
+    private long journalRegionStart;
+
+    /**
+     * Attaches a journal with a batch size of 64 KiB, flushing every second and compacting after 256 MiB.
+     *
+     * @see #GraphBuilderJournal(GraphBuilder, Path, TaskIdCodec, int, long, TimeUnit, long)
+     */
+    public GraphBuilderJournal(GraphBuilder<T> graphBuilder, Path directory, TaskIdCodec<T> codec) throws IOException {
+        this(graphBuilder, directory, codec, 64 * 1024, 1, TimeUnit.SECONDS, 256L * 1024 * 1024);
+    }
+
+    /**
+     * Attaches a journal to the given graph builder and writes a snapshot of its current graph as a new generation
+     * into the given directory. Older generations in the directory are deleted.
+     *
+     * @param graphBuilder             the graph builder to journal the changes of, must not use weakly held task ids
+     * @param directory                the directory for the files of the journal, created if missing
+     * @param codec                    to store the task ids
+     * @param batchSizeBytes           the size in bytes of the batches of changes, &gt; 0
+     * @param flushInterval            the interval of the periodic flushing and compaction, 0 to disable
+     * @param timeUnit                 the unit of flushInterval
+     * @param compactionThresholdBytes the size in bytes of the journal, from which on it is compacted periodically, &gt; 0
+     * @throws java.lang.IllegalArgumentException in case of invalid arguments
+     * @throws IOException                        in case the files can't be written
+     */
+    public GraphBuilderJournal(GraphBuilder<T> graphBuilder,
+                               Path directory,
+                               TaskIdCodec<T> codec,
+                               int batchSizeBytes,
+                               long flushInterval,
+                               TimeUnit timeUnit,
+                               long compactionThresholdBytes) throws IOException {
+        Preconditions.checkArgumentNotNull(graphBuilder, "graphBuilder must not be null");
+        Preconditions.checkArgumentNotNull(directory, "directory must not be null");
+        Preconditions.checkArgumentNotNull(codec, "codec must not be null");
+        Preconditions.checkArgumentNotNull(timeUnit, "timeUnit must not be null");
+        Preconditions.checkArgument(batchSizeBytes > 0, "batchSizeBytes must be > 0: " + batchSizeBytes);
+        Preconditions.checkArgument(flushInterval >= 0, "flushInterval must be >= 0: " + flushInterval);
+        Preconditions.checkArgument(compactionThresholdBytes > 0, "compactionThresholdBytes must be > 0: " + compactionThresholdBytes);
+        this.graphBuilder = graphBuilder;
+        this.directory = directory;
+        this.codec = codec;
+        this.batchSizeBytes = batchSizeBytes;
+        this.compactionThresholdBytes = compactionThresholdBytes;
+        this.batch = new RecordWriter(codec, batchSizeBytes + 1024);
+        this.writingBatch = new RecordWriter(codec, batchSizeBytes + 1024);
+
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> journals = listGenerations(directory, JOURNAL_SUFFIX);
+        TreeMap<Long, Path> snapshots = listGenerations(directory, SNAPSHOT_SUFFIX);
+        generation = Math.max(journals.isEmpty() ? 0 : journals.lastKey(), snapshots.isEmpty() ? 0 : snapshots.lastKey());
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, GraphBuilderJournal.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            compact(); // attaches the journal
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        if (flushInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::flushAndCompactIfNeeded, flushInterval, flushInterval, timeUnit);
+        }
+    }
+
+    /**
+     * Appends the collected changes to the journal and forces them to the storage device.
+     *
+     * @throws IOException in case the journal can't be written, also in case of a failure to write the journal before
+     *                     or of a failed periodic compaction
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            synchronized (internalLock) {
+                throwFailure();
+                if (closed) {
+                    return;
+                }
+            }
+            writeBatch();
+            if (journalRegion != null) {
+                journalRegion.force();
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current graph as a new generation and deletes the older generations. Only the switch to
+     * the new generation blocks the changes of the graph builder, the files are written afterwards.
+     *
+     * @throws IOException in case the files can't be written, also in case of a failure to write the journal before
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            final Graph<T> graph;
+            final long newGeneration;
+            final RetiredJournal retiredJournal;
+            synchronized (writeLock) {
+                final RecordWriter[] lastBatch = new RecordWriter[1];
+                graph = graphBuilder.build(() -> {
+                    synchronized (internalLock) {
+                        if (!closed && failure == null) {
+                            if (!attached) {
+                                graphBuilder.setMutationListener(listener);
+                                attached = true;
+                            }
+                            lastBatch[0] = takeBatch(); // the changes after it belong to the new generation
+                            journalBytes = 0;
+                        }
+                    }
+                });
+                if (lastBatch[0] == null) {
+                    synchronized (internalLock) {
+                        throwFailure();
+                    }
+                    return; // closed
+                }
+                try {
+                    writeRecords(lastBatch[0]);
+                } catch (IOException e) {
+                    // reported below
+                }
+                retiredJournal = retireJournal(); // the journal of the new generation is opened with its first batch
+                generation++;
+                newGeneration = generation;
+            }
+            closeRetiredJournal(retiredJournal);
+            synchronized (internalLock) {
+                throwFailure();
+            }
+            writeSnapshot(graph, newGeneration);
+            deleteGenerationsBefore(directory, newGeneration);
+        }
+    }
+
+    /**
+     * @return the size in bytes of the journal of the current generation, including the changes not flushed yet
+     */
+    public long getJournalBytes() {
+        synchronized (internalLock) {
+            return journalBytes + batch.buffer.position();
+        }
+    }
+
+    /**
+     * Detaches the journal from the graph builder (unless another journal was attached meanwhile), waits for the
+     * background writing and flushing to finish and flushes the collected changes.
+     *
+     * @throws IOException in case the journal can't be written, also in case of a failure to write the journal before
+     *                     or of a failed periodic compaction
+     */
+    @Override
+    public void close() throws IOException {
+        graphBuilder.removeMutationListener(listener);
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (compactionLock) {
+            RetiredJournal retiredJournal = null;
+            synchronized (writeLock) {
+                boolean alreadyClosed;
+                synchronized (internalLock) {
+                    alreadyClosed = closed;
+                }
+                if (!alreadyClosed) {
+                    try {
+                        writeBatch();
+                    } catch (IOException e) {
+                        // reported below
+                    }
+                    retiredJournal = retireJournal();
+                    synchronized (internalLock) {
+                        closed = true;
+                    }
+                }
+            }
+            if (retiredJournal != null) {
+                closeRetiredJournal(retiredJournal);
+            }
+            synchronized (internalLock) {
+                throwFailure();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a graph from the files written by a journal, see {@link #replay(Path, TaskIdCodec, GraphBuilder)}.
+     *
+     * @return a new {@link GraphBuilder} with the replayed graph
+     */
+    public static <T> GraphBuilder<T> replay(Path directory, TaskIdCodec<T> codec) throws IOException {
+        return replay(directory, codec, new GraphBuilder<>());
+    }
+
+    /**
+     * Rebuilds a graph from the files written by a journal: the newest complete snapshot and the journals after it.
+     * The files are only read, so this can be done offline also for a copy of the directory.
+     *
+     * @param directory    the directory with the files of a journal
+     * @param codec        the codec the task ids were stored with
+     * @param graphBuilder the (usually empty) graph builder to replay the changes on
+     * @return the given graph builder
+     * @throws IOException in case the files can't be read or are corrupt
+     */
+    public static <T> GraphBuilder<T> replay(Path directory, TaskIdCodec<T> codec, GraphBuilder<T> graphBuilder) throws IOException {
+        Preconditions.checkArgumentNotNull(directory, "directory must not be null");
+        Preconditions.checkArgumentNotNull(codec, "codec must not be null");
+        Preconditions.checkArgumentNotNull(graphBuilder, "graphBuilder must not be null");
+        TreeMap<Long, Path> snapshots = listGenerations(directory, SNAPSHOT_SUFFIX);
+        long firstGeneration = 0;
+        if (!snapshots.isEmpty()) {
+            firstGeneration = snapshots.lastKey();
+            replayFile(snapshots.lastEntry().getValue(), codec, graphBuilder);
+        }
+        for (Path journal : listGenerations(directory, JOURNAL_SUFFIX).tailMap(firstGeneration).values()) {
+            replayFile(journal, codec, graphBuilder);
+        }
+        return graphBuilder;
+    }
+
+    private void flushAndCompactIfNeeded() {
+        try {
+            flush();
+            if (getJournalBytes() > compactionThresholdBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            synchronized (internalLock) {
+                if (failure == null && backgroundFailure == null) {
+                    backgroundFailure = e;
+                }
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (internalLock) {
+            if (failure == null) {
+                failure = e; // reported by flush, compact and close, see class comment
+            }
+        }
+    }
+
+    private void throwFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (backgroundFailure != null) {
+            IOException reported = backgroundFailure;
+            backgroundFailure = null;
+            throw reported;
+        }
+    }
+
+    private void append(byte recordType, T taskId, /* Nullable */ T waitingOnTaskId, /* Nullable */ List<T> waitingOnTaskIds) {
+        synchronized (internalLock) {
+            if (closed || failure != null) {
+                return;
+            }
+            batch.write(recordType, taskId, waitingOnTaskId, waitingOnTaskIds);
+            if (batch.buffer.position() >= batchSizeBytes && !writeScheduled) {
+                writeScheduled = true;
+                try {
+                    scheduler.execute(this::writeBatchInBackground);
+                } catch (RejectedExecutionException e) {
+                    // closing, the batch is written by close
+                }
+            }
+        }
+    }
+
+    private void writeBatchInBackground() {
+        synchronized (writeLock) {
+            try {
+                writeBatch();
+            } catch (IOException e) {
+                // reported by flush, compact and close, see class comment
+            }
+        }
+    }
+
+    /**
+     * Takes the collected changes and appends them to the journal. The caller holds the writeLock.
+     */
+    private void writeBatch() throws IOException {
+        RecordWriter records;
+        synchronized (internalLock) {
+            if (closed || failure != null) {
+                return;
+            }
+            records = takeBatch();
+        }
+        writeRecords(records);
+    }
+
+    /**
+     * Swaps the batch with the empty one, so that the changes are collected further while the taken batch is written.
+     * The caller holds the internalLock.
+     */
+    private RecordWriter takeBatch() {
+        RecordWriter taken = batch;
+        batch = writingBatch;
+        writingBatch = taken;
+        writeScheduled = false;
+        int length = taken.buffer.position();
+        if (length > 0) {
+            journalBytes += (journalBytes == 0 ? HEADER_BYTES : 0) + length;
+        }
+        return taken;
+    }
+
+    /**
+     * Copies the records into the memory-mapped journal. The caller holds the writeLock, but not the internalLock. In
+     * case of a failure, the journal stops journaling, so that a failed batch can't leave a hole in the journal.
+     */
+    private void writeRecords(RecordWriter records) throws IOException {
+        ByteBuffer buffer = records.buffer;
+        int length = buffer.position();
+        if (length == 0) {
+            return;
+        }
+        try {
+            if (journalChannel == null) {
+                openJournal();
+            }
+            if (journalRegion.remaining() < length) {
+                long nextRegionStart = journalRegionStart + journalRegion.position();
+                journalRegion.force();
+                MappedByteBuffer nextRegion = journalChannel.map(FileChannel.MapMode.READ_WRITE, nextRegionStart, Math.max(MAPPED_REGION_BYTES, length));
+                journalRegionStart = nextRegionStart;
+                journalRegion = nextRegion;
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+        buffer.flip();
+        // the first byte is written last, so that a crash in between leaves an end marker instead of a partial batch
+        int start = journalRegion.position();
+        byte first = buffer.get();
+        journalRegion.position(start + 1);
+        journalRegion.put(buffer);
+        journalRegion.put(start, first);
+        buffer.clear();
+    }
+
+    /**
+     * Hands the journal of the current generation over to be closed outside of the writeLock. The caller holds the
+     * writeLock.
+     */
+    private RetiredJournal retireJournal() {
+        RetiredJournal retiredJournal = new RetiredJournal();
+        if (journalChannel != null) {
+            retiredJournal.channel = journalChannel;
+            retiredJournal.region = journalRegion;
+            retiredJournal.bytes = journalRegionStart + journalRegion.position();
+            journalChannel = null;
+            journalRegion = null;
+        }
+        return retiredJournal;
+    }
+
+    private void closeRetiredJournal(RetiredJournal retiredJournal) {
+        try {
+            retiredJournal.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void openJournal() throws IOException {
+        FileChannel channel = FileChannel.open(file(directory, generation, JOURNAL_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAPPED_REGION_BYTES);
+            region.putInt(MAGIC).put(FORMAT_VERSION);
+            journalChannel = channel;
+            journalRegion = region;
+            journalRegionStart = 0;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void writeSnapshot(Graph<T> graph, long snapshotGeneration) throws IOException {
+        Path temporaryFile = file(directory, snapshotGeneration, SNAPSHOT_SUFFIX + TEMPORARY_SUFFIX);
+        try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile.toFile());
+             BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, 64 * 1024)) {
+            RecordWriter writer = new RecordWriter(codec, 64 * 1024);
+            writer.buffer.putInt(MAGIC).put(FORMAT_VERSION);
+            for (Task<T> task : graph.getTasks()) {
+                writer.write(ADD_TASK, task.getId(), null, null);
+                writer.drainTo(outputStream, 32 * 1024);
+            }
+            List<T> waitingOnTaskIds = new ArrayList<>();
+            for (Task<T> task : graph.getTasks()) {
+                for (Task<T> waitingOnTask : task.getWaitsForTasks()) {
+                    writer.write(ADD_WAIT_FOR, task.getId(), waitingOnTask.getId(), null);
+                    writer.drainTo(outputStream, 32 * 1024);
+                }
+                for (Set<Task<T>> group : task.getWaitsForAnyOfTasks()) {
+                    waitingOnTaskIds.clear();
+                    for (Task<T> waitingOnTask : group) {
+                        waitingOnTaskIds.add(waitingOnTask.getId());
+                    }
+                    writer.write(ADD_WAIT_FOR_ANY_OF, task.getId(), null, waitingOnTaskIds);
+                    writer.drainTo(outputStream, 32 * 1024);
+                }
+            }
+            writer.buffer.put(END);
+            writer.drainTo(outputStream, 0);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+        Files.move(temporaryFile, file(directory, snapshotGeneration, SNAPSHOT_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static <T> void replayFile(Path file, TaskIdCodec<T> codec, GraphBuilder<T> graphBuilder) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(size - position, MAX_MAPPED_READ_BYTES);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int recordStart = 0;
+                try {
+                    if (position == 0 && (buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION)) {
+                        throw new IOException("Not a journal file or unsupported format: " + file);
+                    }
+                    while (buffer.hasRemaining()) {
+                        recordStart = buffer.position();
+                        byte recordType = buffer.get();
+                        if (recordType == END) {
+                            return;
+                        }
+                        replayRecord(recordType, buffer, codec, graphBuilder, file);
+                    }
+                    position += length;
+                } catch (BufferUnderflowException e) {
+                    if (position + length >= size) {
+                        throw new IOException("Truncated record at position " + (position + recordStart) + " in " + file, e);
+                    }
+                    position += recordStart; // the record continues beyond the mapped part
+                }
+            }
+        }
+    }
+
+    private static <T> void replayRecord(byte recordType, ByteBuffer buffer, TaskIdCodec<T> codec, GraphBuilder<T> graphBuilder, Path file) throws IOException {
+        // reads the complete record before applying it, so that it doesn't get applied twice in case of an underflow
+        T taskId = readTaskId(buffer, codec);
+        try {
+            switch (recordType) {
+                case ADD_TASK:
+                    graphBuilder.addTask(taskId);
+                    break;
+                case REMOVE_TASK:
+                    graphBuilder.removeTask(taskId);
+                    break;
+                case ADD_WAIT_FOR:
+                    graphBuilder.addTaskWaitsFor(taskId, readTaskId(buffer, codec));
+                    break;
+                case REMOVE_WAIT_FOR:
+                    graphBuilder.removeTaskWaitForDependency(taskId, readTaskId(buffer, codec));
+                    break;
+                case ADD_WAIT_FOR_ANY_OF:
+                    graphBuilder.addTaskWaitsForAnyOf(taskId, readTaskIds(buffer, codec));
+                    break;
+                case REMOVE_WAIT_FOR_ANY_OF:
+                    graphBuilder.removeTaskWaitForAnyOfDependency(taskId, readTaskIds(buffer, codec));
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + recordType + " in " + file);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Inconsistent record in " + file, e);
+        }
+    }
+
+    private static <T> T readTaskId(ByteBuffer buffer, TaskIdCodec<T> codec) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return codec.decode(bytes);
+    }
+
+    private static <T> List<T> readTaskIds(ByteBuffer buffer, TaskIdCodec<T> codec) {
+        int count = buffer.getInt();
+        List<T> taskIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            taskIds.add(readTaskId(buffer, codec));
+        }
+        return taskIds;
+    }
+
+    private static TreeMap<Long, Path> listGenerations(Path directory, String suffix) throws IOException {
+        TreeMap<Long, Path> generations = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + suffix)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    generations.put(Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    // not written by a journal
+                }
+            }
+        }
+        return generations;
+    }
+
+    private static void deleteGenerationsBefore(Path directory, long generation) throws IOException {
+        for (String suffix : new String[]{SNAPSHOT_SUFFIX, JOURNAL_SUFFIX, SNAPSHOT_SUFFIX + TEMPORARY_SUFFIX}) {
+            for (Path file : listGenerations(directory, suffix).headMap(generation).values()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static Path file(Path directory, long generation, String suffix) {
+        return directory.resolve(String.format("%s%019d%s", FILE_PREFIX, generation, suffix));
+    }
+
+    private class JournalingListener implements GraphMutationListener<T> {
+
+        @Override
+        public void taskAdded(final T taskId) {
+            append(ADD_TASK, taskId, null, null);
+        }
+
+        @Override
+        public void taskRemoved(final T taskId) {
+            append(REMOVE_TASK, taskId, null, null);
+        }
+
+        @Override
+        public void waitForAdded(final T taskId, final T waitingOnTaskId) {
+            append(ADD_WAIT_FOR, taskId, waitingOnTaskId, null);
+        }
+
+        @Override
+        public void waitForRemoved(final T taskId, final T waitingOnTaskId) {
+            append(REMOVE_WAIT_FOR, taskId, waitingOnTaskId, null);
+        }
+
+        @Override
+        public void waitForAnyOfAdded(final T taskId, final List<T> waitingOnTaskIds) {
+            append(ADD_WAIT_FOR_ANY_OF, taskId, null, waitingOnTaskIds);
+        }
+
+        @Override
+        public void waitForAnyOfRemoved(final T taskId, final List<T> waitingOnTaskIds) {
+            append(REMOVE_WAIT_FOR_ANY_OF, taskId, null, waitingOnTaskIds);
+        }
+    }
+
+    /**
+     * The journal of a finished generation. It is forced, truncated to its written size and closed outside of the locks
+     * of the graph builder and the journal.
+     */
+    private static final class RetiredJournal {
+
+        private FileChannel channel; // null, if no batch was written
+        private MappedByteBuffer region;
+        private long bytes;
+
+        void close() throws IOException {
+            if (channel != null) {
+                try {
+                    region.force();
+                    channel.truncate(bytes);
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes records into a growing heap buffer: the record type, then the task ids each as length and bytes, groups
+     * of task ids prefixed by their count.
+     */
+    private static class RecordWriter {
+
+        private final TaskIdCodec<?> codec;
+        private ByteBuffer buffer;
+
+        RecordWriter(TaskIdCodec<?> codec, int initialCapacity) {
+            this.codec = codec;
+            this.buffer = ByteBuffer.allocate(initialCapacity);
+        }
+
+        <T> void write(byte recordType, T taskId, /* Nullable */ T waitingOnTaskId, /* Nullable */ Collection<T> waitingOnTaskIds) {
+            ensureRemaining(1);
+            buffer.put(recordType);
+            writeTaskId(taskId);
+            if (waitingOnTaskId != null) {
+                writeTaskId(waitingOnTaskId);
+            }
+            if (waitingOnTaskIds != null) {
+                ensureRemaining(Integer.BYTES);
+                buffer.putInt(waitingOnTaskIds.size());
+                for (T id : waitingOnTaskIds) {
+                    writeTaskId(id);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void writeTaskId(T taskId) {
+            byte[] bytes = ((TaskIdCodec<T>) codec).encode(taskId);
+            ensureRemaining(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+
+        void drainTo(BufferedOutputStream outputStream, int threshold) throws IOException {
+            if (buffer.position() > threshold) {
+                outputStream.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+
+        private void ensureRemaining(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+}
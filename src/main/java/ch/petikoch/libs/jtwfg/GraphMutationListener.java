@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+import java.util.List;
+
+/**
+ * Gets notified about the changes of the graph in a {@link GraphBuilder}, in the order they happen. Only the changes
+ * made explicitly are notified, not the ones following implicitly from them (e.g. the removal of the dependencies of a
+ * removed task). Replaying the notified changes on an empty {@link GraphBuilder} results in the same graph.
+ *
+ * @param <T> The type of the ID of the tasks.
+ */
+interface GraphMutationListener<T> {
+
+    void taskAdded(T taskId);
+
+    void taskRemoved(T taskId);
+
+    void waitForAdded(T taskId, T waitingOnTaskId);
+
+    void waitForRemoved(T taskId, T waitingOnTaskId);
+
+    void waitForAnyOfAdded(T taskId, List<T> waitingOnTaskIds);
+
+    void waitForAnyOfRemoved(T taskId, List<T> waitingOnTaskIds);
+}
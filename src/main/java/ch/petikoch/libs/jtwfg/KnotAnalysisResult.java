@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+import ch.petikoch.libs.jtwfg.assertion.Preconditions;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The representation for the result of a deadlock analysis in a "task wait for model" graph with "wait for any of"
+ * (OR) groups, see {@link DeadlockDetector#analyzeKnots(Graph)}.
+ * <p>
+ * Immutable / thread-safe.
+ *
+ * @param <T> The type of the ID of the tasks. Something with a meaningful {@link Object#equals(Object)} and {@link
+ *            Object#hashCode()} implementation like {@link String}, {@link Long} or a class of your domain model which is fine
+ *            to use as a key e.g. in a {@link java.util.HashMap}. If T implements Comparable, then you get sorted collections.
+ */
+public class KnotAnalysisResult<T> {
+
+    private final Set<Set<T>> knots;
+    private final Set<T> deadlockedTasks;
+
+    KnotAnalysisResult(final Set<Set<T>> knots, final Set<T> deadlockedTasks) {
+        this.knots = Collections.unmodifiableSet(knots);
+        this.deadlockedTasks = Collections.unmodifiableSet(deadlockedTasks);
+    }
+
+    /**
+     * @return true, if you have one or more deadlocks
+     */
+    public boolean hasDeadlock() {
+        return !deadlockedTasks.isEmpty();
+    }
+
+    /**
+     * A knot is a set of deadlocked tasks, which are waiting for each other and not for other deadlocked tasks outside
+     * of the knot. Every deadlocked task is either in a knot or waiting direct or indirect for a task in a knot.
+     *
+     * @return an unmodifiable set of the knots (zero or more...)
+     */
+    public Set<Set<T>> getKnots() {
+        return knots;
+    }
+
+    /**
+     * @return an unmodifiable set of all deadlocked tasks, in knots or outside of knots
+     */
+    public Set<T> getDeadlockedTasks() {
+        return deadlockedTasks;
+    }
+
+    /**
+     * @param task not null
+     * @return true if the given task is somehow deadlocked
+     */
+    public boolean isDeadlocked(T task) {
+        Preconditions.checkArgumentNotNull(task, "task may not be null");
+        return deadlockedTasks.contains(task);
+    }
+
+    // generated by IntelliJ IDEA
+    @SuppressWarnings("RedundantIfStatement")
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final KnotAnalysisResult that = (KnotAnalysisResult) o;
+
+        if (!knots.equals(that.knots)) return false;
+        if (!deadlockedTasks.equals(that.deadlockedTasks)) return false;
+
+        return true;
+    }
+
+    // generated by IntelliJ IDEA
+    @Override
+    public int hashCode() {
+        int result = knots.hashCode();
+        result = 31 * result + deadlockedTasks.hashCode();
+        return result;
+    }
+
+    // generated by IntelliJ IDEA
+    @Override
+    public String toString() {
+        return "KnotAnalysisResult{" +
+               "knots=" + knots +
+               ", deadlockedTasks=" + deadlockedTasks +
+               '}';
+    }
+}
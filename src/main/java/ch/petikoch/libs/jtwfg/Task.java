@@ -18,6 +18,7 @@ package ch.petikoch.libs.jtwfg;
 import ch.petikoch.libs.jtwfg.assertion.Preconditions;
 
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -37,19 +38,19 @@ public class Task<T> implements Comparable<Task<T>> {
 
     private final T id;
     private final Set<Task<T>> waitsForTasks = new TreeSet<>();
+    private final Set<Set<Task<T>>> waitsForAnyOfTasks = new LinkedHashSet<>();
 
     Task(T id) {
         Preconditions.checkArgumentNotNull(id, "id must not be null");
         this.id = id;
     }
 
-    Task<T> addWaitFor(Task<T> other) {
-        waitsForTasks.add(other);
-        return this;
+    boolean addWaitFor(Task<T> other) {
+        return waitsForTasks.add(other);
     }
 
-    boolean removeWaitFor(Task<T> other) {
-        return waitsForTasks.remove(other);
+    boolean addWaitForAnyOf(Set<Task<T>> others) {
+        return waitsForAnyOfTasks.add(Collections.unmodifiableSet(new TreeSet<>(others)));
     }
 
     /**
@@ -59,6 +60,17 @@ public class Task<T> implements Comparable<Task<T>> {
         return Collections.unmodifiableSet(waitsForTasks);
     }
 
+    /**
+     * The "wait for any of" (OR) groups of this task: the task is waiting until at least one task of every group is
+     * done, additionally to all the tasks of {@link #getWaitsForTasks()}.
+     *
+     * @return an unmodifiable set of unmodifiable "wait for any of" groups in insertion order. If Type T implements
+     * comparable, the tasks of a group are ordered.
+     */
+    public Set<Set<Task<T>>> getWaitsForAnyOfTasks() {
+        return Collections.unmodifiableSet(waitsForAnyOfTasks);
+    }
+
     public T getId() {
         return id;
     }
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts task IDs to bytes and back, see {@link GraphBuilderJournal}.
+ *
+ * @param <T> The type of the ID of the tasks.
+ */
+public interface TaskIdCodec<T> {
+
+    /**
+     * @param taskId not null
+     * @return the bytes representing the task id
+     */
+    byte[] encode(T taskId);
+
+    /**
+     * @param bytes as returned by {@link #encode(Object)}
+     * @return the task id
+     */
+    T decode(byte[] bytes);
+
+    /**
+     * @return a codec for {@link String} task IDs (UTF-8)
+     */
+    static TaskIdCodec<String> forStrings() {
+        return new TaskIdCodec<String>() {
+            @Override
+            public byte[] encode(final String taskId) {
+                return taskId.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(final byte[] bytes) {
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * @return a codec for {@link Long} task IDs
+     */
+    static TaskIdCodec<Long> forLongs() {
+        return new TaskIdCodec<Long>() {
+            @Override
+            public byte[] encode(final Long taskId) {
+                return ByteBuffer.allocate(Long.BYTES).putLong(taskId).array();
+            }
+
+            @Override
+            public Long decode(final byte[] bytes) {
+                return ByteBuffer.wrap(bytes).getLong();
+            }
+        };
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg.jvm;
+
+import ch.petikoch.libs.jtwfg.GraphBuilder;
+import ch.petikoch.libs.jtwfg.assertion.Preconditions;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.AbstractOwnableSynchronizer;
+
+/**
+ * Samples the lock ownership information of the threads of the current JVM (using {@link ThreadMXBean}) and feeds it
+ * incrementally into a {@link GraphBuilder}. The tasks in the graph are the thread IDs, a "wait for" dependency means
+ * that a thread is waiting to acquire a lock which is owned by another thread.
+ * <p>
+ * Only the differences to the previous sample are applied to the graph builder: threads which are still alive and
+ * still waiting for the same lock owner (or still not waiting) don't cause any graph builder mutation.
+ * <p>
+ * The threads are sampled without stack traces, which is the cheapest way to get the lock owner information. To keep
+ * the overhead bounded when running continuously, the delay between two samples is at least the configured interval
+ * and is stretched, if needed, so that the time spent sampling doesn't exceed the configured share of the wall-clock
+ * time.
+ * <p>
+ * Thread-safe.
+ */
+public class ThreadWaitForGraphSampler {
+
+    private static final long NO_LOCK_OWNER = -1;
+
+    private final GraphBuilder<Long> graphBuilder;
+    private final ThreadMXBean threadMXBean;
+    private final long intervalNanos;
+    private final boolean includeOwnableSynchronizers;
+    private final double maxOverheadRatio;
+
+    // thread id -> id of the thread owning the lock it waits for (or NO_LOCK_OWNER), as applied to the graph builder
+    private final Map<Long, Long> appliedLockOwners = new HashMap<>();
+
+    // class name of a lock -> is it an AbstractOwnableSynchronizer
+    private final Map<String, Boolean> ownableSynchronizerClassNames = new ConcurrentHashMap<>();
+
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final AtomicLong lastSampleDurationNanos = new AtomicLong();
+    private final AtomicLong totalSampleDurationNanos = new AtomicLong();
+    private final AtomicLong failedSampleCount = new AtomicLong();
+    private final AtomicReference<RuntimeException> lastFailure = new AtomicReference<>();
+
+    private final Object internalLock = new Object();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a sampler with an interval of one second, which considers also {@link
+     * java.util.concurrent.locks.AbstractOwnableSynchronizer}s and uses at most 1% of the wall-clock time for
+     * sampling.
+     *
+     * @param graphBuilder not null
+     */
+    public ThreadWaitForGraphSampler(GraphBuilder<Long> graphBuilder) {
+        this(graphBuilder, 1, TimeUnit.SECONDS, true, 0.01);
+    }
+
+    /**
+     * @param graphBuilder                not null
+     * @param interval                    the minimal delay between two samples, &gt; 0
+     * @param timeUnit                    not null
+     * @param includeOwnableSynchronizers true, to consider also threads waiting for {@link
+     *                                    java.util.concurrent.locks.AbstractOwnableSynchronizer}s (e.g. {@link
+     *                                    java.util.concurrent.locks.ReentrantLock}), false to consider only threads
+     *                                    blocked on object monitors. Threads in {@link Object#wait()} never wait for
+     *                                    the current holder of the monitor.
+     * @param maxOverheadRatio            the maximal share of the wall-clock time spent sampling, &gt; 0 and &lt;= 1
+     * @throws java.lang.IllegalArgumentException in case of invalid arguments
+     */
+    public ThreadWaitForGraphSampler(GraphBuilder<Long> graphBuilder,
+                                     long interval,
+                                     TimeUnit timeUnit,
+                                     boolean includeOwnableSynchronizers,
+                                     double maxOverheadRatio) {
+        this(graphBuilder, ManagementFactory.getThreadMXBean(), interval, timeUnit, includeOwnableSynchronizers, maxOverheadRatio);
+    }
+
+    ThreadWaitForGraphSampler(GraphBuilder<Long> graphBuilder,
+                              ThreadMXBean threadMXBean,
+                              long interval,
+                              TimeUnit timeUnit,
+                              boolean includeOwnableSynchronizers,
+                              double maxOverheadRatio) {
+        Preconditions.checkArgumentNotNull(graphBuilder, "graphBuilder must not be null");
+        Preconditions.checkArgumentNotNull(threadMXBean, "threadMXBean must not be null");
+        Preconditions.checkArgumentNotNull(timeUnit, "timeUnit must not be null");
+        Preconditions.checkArgument(interval > 0, "interval must be > 0: " + interval);
+        Preconditions.checkArgument(maxOverheadRatio > 0 && maxOverheadRatio <= 1, "maxOverheadRatio must be > 0 and <= 1: " + maxOverheadRatio);
+        this.graphBuilder = graphBuilder;
+        this.threadMXBean = threadMXBean;
+        this.intervalNanos = timeUnit.toNanos(interval);
+        this.includeOwnableSynchronizers = includeOwnableSynchronizers;
+        this.maxOverheadRatio = maxOverheadRatio;
+    }
+
+    /**
+     * Starts sampling periodically using an own daemon thread. Does nothing if already started. A failing sample
+     * doesn't stop the periodic sampling, see {@link #getFailedSampleCount()} and {@link #getLastFailure()}.
+     *
+     * @return the sampler instance itself
+     */
+    public ThreadWaitForGraphSampler start() {
+        synchronized (internalLock) {
+            if (scheduler == null) {
+                final ScheduledExecutorService ownScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, ThreadWaitForGraphSampler.class.getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                scheduler = ownScheduler;
+                ownScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long startNanos = System.nanoTime();
+                        try {
+                            sample();
+                        } catch (RuntimeException e) {
+                            failedSampleCount.incrementAndGet();
+                            lastFailure.set(e);
+                        }
+                        long durationNanos = System.nanoTime() - startNanos;
+                        long delayNanos = Math.max(intervalNanos, (long) (durationNanos / maxOverheadRatio));
+                        synchronized (internalLock) {
+                            if (scheduler == ownScheduler) {
+                                ownScheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Stops sampling periodically and waits for a sample in progress to complete. Does nothing if not started. The
+     * graph builder keeps the state of the last sample.
+     *
+     * @return the sampler instance itself
+     */
+    public ThreadWaitForGraphSampler stop() {
+        final ScheduledExecutorService stoppedScheduler;
+        synchronized (internalLock) {
+            stoppedScheduler = scheduler;
+            scheduler = null;
+        }
+        if (stoppedScheduler != null) {
+            stoppedScheduler.shutdownNow();
+            try {
+                stoppedScheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Takes one sample and applies the differences to the previous sample to the graph builder. Is also called
+     * periodically after {@link #start()}, but can be called manually, too.
+     *
+     * @return the duration of the sample in nanoseconds
+     */
+    public long sample() {
+        long startNanos = System.nanoTime();
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0);
+        synchronized (appliedLockOwners) {
+            Map<Long, Long> sampledLockOwners = new HashMap<>(threadInfos.length * 2);
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (threadInfo != null) { // null, if the thread is not alive anymore
+                    sampledLockOwners.put(threadInfo.getThreadId(), getLockOwnerId(threadInfo));
+                }
+            }
+            applyDifferences(sampledLockOwners);
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        sampleCount.incrementAndGet();
+        lastSampleDurationNanos.set(durationNanos);
+        totalSampleDurationNanos.addAndGet(durationNanos);
+        return durationNanos;
+    }
+
+    private long getLockOwnerId(ThreadInfo threadInfo) {
+        switch (threadInfo.getThreadState()) {
+            case BLOCKED:
+                return threadInfo.getLockOwnerId();
+            case WAITING:
+            case TIMED_WAITING:
+                // Object.wait() reports the current holder of the monitor, which doesn't wait for the waiting thread
+                return includeOwnableSynchronizers && isOwnableSynchronizer(threadInfo.getLockInfo()) ? threadInfo.getLockOwnerId() : NO_LOCK_OWNER;
+            default:
+                return NO_LOCK_OWNER;
+        }
+    }
+
+    private boolean isOwnableSynchronizer(/* Nullable */ LockInfo lockInfo) {
+        return lockInfo != null && ownableSynchronizerClassNames.computeIfAbsent(lockInfo.getClassName(), ThreadWaitForGraphSampler::isOwnableSynchronizerClass);
+    }
+
+    private static boolean isOwnableSynchronizerClass(String className) {
+        for (ClassLoader classLoader : new ClassLoader[]{ThreadWaitForGraphSampler.class.getClassLoader(), Thread.currentThread().getContextClassLoader()}) {
+            try {
+                return AbstractOwnableSynchronizer.class.isAssignableFrom(Class.forName(className, false, classLoader));
+            } catch (ClassNotFoundException | LinkageError e) {
+                // try the next class loader
+            }
+        }
+        return false; // unknown, so rather no dependency than a wrong one
+    }
+
+    private void applyDifferences(Map<Long, Long> sampledLockOwners) {
+        // a lock owner may have terminated or started between getAllThreadIds() and getThreadInfo()
+        for (Long lockOwnerId : sampledLockOwners.values().toArray(new Long[0])) {
+            if (lockOwnerId != NO_LOCK_OWNER && !sampledLockOwners.containsKey(lockOwnerId)) {
+                sampledLockOwners.put(lockOwnerId, NO_LOCK_OWNER);
+            }
+        }
+
+        Iterator<Map.Entry<Long, Long>> appliedIterator = appliedLockOwners.entrySet().iterator();
+        while (appliedIterator.hasNext()) {
+            Long threadId = appliedIterator.next().getKey();
+            if (!sampledLockOwners.containsKey(threadId)) {
+                if (graphBuilder.hasTask(threadId)) {
+                    try {
+                        graphBuilder.removeTask(threadId); // removes also the incoming "wait for" dependencies
+                    } catch (IllegalArgumentException e) {
+                        // removed concurrently by someone else sharing the graph builder
+                    }
+                }
+                appliedIterator.remove();
+            }
+        }
+
+        for (Map.Entry<Long, Long> sampled : sampledLockOwners.entrySet()) {
+            Long threadId = sampled.getKey();
+            long sampledLockOwnerId = sampled.getValue();
+            Long appliedLockOwnerId = appliedLockOwners.get(threadId);
+            if (appliedLockOwnerId == null) {
+                graphBuilder.addTask(threadId);
+            } else if (appliedLockOwnerId == sampledLockOwnerId) {
+                continue; // unchanged
+            } else if (appliedLockOwnerId != NO_LOCK_OWNER && appliedLockOwners.containsKey(appliedLockOwnerId)) {
+                try {
+                    graphBuilder.removeTaskWaitForDependency(threadId, appliedLockOwnerId);
+                } catch (IllegalArgumentException e) {
+                    // removed already by someone else sharing the graph builder
+                }
+            }
+            if (sampledLockOwnerId != NO_LOCK_OWNER) {
+                graphBuilder.addTaskWaitsFor(threadId, sampledLockOwnerId);
+            }
+            appliedLockOwners.put(threadId, sampledLockOwnerId);
+        }
+    }
+
+    /**
+     * @return the number of samples taken so far
+     */
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    /**
+     * @return the duration of the last sample in nanoseconds
+     */
+    public long getLastSampleDurationNanos() {
+        return lastSampleDurationNanos.get();
+    }
+
+    /**
+     * @return the accumulated duration of all samples taken so far in nanoseconds
+     */
+    public long getTotalSampleDurationNanos() {
+        return totalSampleDurationNanos.get();
+    }
+
+    /**
+     * @return the number of periodic samples which failed with an exception (e.g. because the capacity limits of the
+     * graph builder were reached), these are not counted in {@link #getSampleCount()}
+     */
+    public long getFailedSampleCount() {
+        return failedSampleCount.get();
+    }
+
+    /**
+     * @return the exception of the last failed periodic sample, null if none failed
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure.get();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg
+
+import spock.lang.Specification
+
+class CachingDeadlockDetectorTest extends Specification {
+
+	def graphBuilder = new GraphBuilder<String>()
+	def testee = new CachingDeadlockDetector<String>(2)
+
+	def 'analyze: returns the remembered result for a graph with the same version'() {
+		given:
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		graphBuilder.addTaskWaitsFor('t2', 't1')
+
+		when:
+		def result1 = testee.analyze(graphBuilder.build())
+		def result2 = testee.analyze(graphBuilder.build())
+
+		then:
+		result1.hasDeadlock()
+		result2.is(result1)
+		testee.getHitCount() == 1
+		testee.getMissCount() == 1
+
+		when: 'the graph changes'
+		graphBuilder.removeTask('t2')
+		def result3 = testee.analyze(graphBuilder.build())
+
+		then:
+		!result3.hasDeadlock()
+		testee.getMissCount() == 2
+	}
+
+	def 'analyze: results with and without scheduling layers are remembered separately'() {
+		given:
+		def graph = graphBuilder.addTaskWaitsFor('t1', 't2').build()
+
+		when:
+		def result = testee.analyze(graph, true)
+		testee.analyze(graph)
+
+		then:
+		result.getSchedulingOrder() == ['t2', 't1']
+		testee.getMissCount() == 2
+		testee.analyze(graph, true).is(result)
+	}
+
+	def 'analyze: evicts the least recently used results when shared by several builders'() {
+		given:
+		def graph1 = new GraphBuilder<String>().addTask('t1').build()
+		def graph2 = new GraphBuilder<String>().addTask('t1').build()
+		def graph3 = new GraphBuilder<String>().addTask('t1').build()
+
+		when:
+		testee.analyze(graph1)
+		testee.analyze(graph2)
+		testee.analyze(graph1)
+		testee.analyze(graph3)
+
+		then:
+		testee.getHitCount() == 1
+		testee.getMissCount() == 3
+
+		when: 'graph2 was evicted'
+		testee.analyze(graph1)
+		testee.analyze(graph2)
+
+		then:
+		testee.getHitCount() == 2
+		testee.getMissCount() == 4
+	}
+
+	def 'constructor: maxCachedResults must be > 0'() {
+		when:
+		new CachingDeadlockDetector<String>(0)
+
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'maxCachedResults must be > 0: 0'
+	}
+}
@@ -287,4 +287,200 @@ class DeadlockDetectorTest extends Specification {
 		result.deadlockCycles.size() == 1
 		result.deadlockCycles.getAt(0) == new DeadlockCycle<>([deadLockedTask1, deadLockedTask2, deadLockedTask1], null)
 	}
+
+	def 'analyze with scheduling layers: the not deadlocked tasks in topological layers'() {
+		given: 'a deadlock cycle with some also deadlocked tasks'
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		graphBuilder.addTaskWaitsFor('t2', 't3')
+		graphBuilder.addTaskWaitsFor('t3', 't1')
+		graphBuilder.addTaskWaitsFor('t4', 't1')
+		graphBuilder.addTaskWaitsFor('t6', 't3')
+		graphBuilder.addTaskWaitsFor('t7', 't6')
+
+		and: 'some not deadlocked tasks'
+		graphBuilder.addTask('t5')
+		graphBuilder.addTaskWaitsFor('a', 'b')
+		graphBuilder.addTaskWaitsFor('a', 'c')
+		graphBuilder.addTaskWaitsFor('b', 'c')
+		graphBuilder.addTaskWaitsFor('d', 'c')
+		def graph = graphBuilder.build()
+
+		when:
+		def result = testee.analyze(graph, true)
+
+		then:
+		result.getSchedulingLayers() == [['c', 't5'] as Set, ['b', 'd'] as Set, ['a'] as Set]
+		result.getSchedulingOrder() == ['c', 't5', 'b', 'd', 'a']
+
+		and: 'the same deadlock cycles as without scheduling layers'
+		result.deadlockCycles == testee.analyze(graph).deadlockCycles
+	}
+
+	def 'analyze with scheduling layers: a wait for any of group blocks until one of its tasks is scheduled'() {
+		given:
+		graphBuilder.addTaskWaitsFor('a', 'b')
+		graphBuilder.addTaskWaitsFor('y', 'z')
+		graphBuilder.addTaskWaitsFor('z', 'y')
+		graphBuilder.addTaskWaitsForAnyOf('x', ['a', 'y'])
+		graphBuilder.addTaskWaitsFor('v', 'b')
+		graphBuilder.addTaskWaitsForAnyOf('v', ['a', 'b'])
+
+		and: 'a task waiting only for a group of deadlocked tasks'
+		graphBuilder.addTaskWaitsForAnyOf('w', ['y', 'z'])
+
+		when:
+		def result = testee.analyze(graphBuilder.build(), true)
+
+		then:
+		result.getSchedulingLayers() == [['b'] as Set, ['a', 'v'] as Set, ['x'] as Set]
+		!result.getSchedulingOrder().contains('w')
+	}
+
+	def 'analyze with scheduling layers: no tasks'() {
+		when:
+		def result = testee.analyze(graphBuilder.build(), true)
+
+		then:
+		result.getSchedulingLayers() == []
+		result.getSchedulingOrder() == []
+	}
+
+	def 'analyze without scheduling layers: getSchedulingLayers is not allowed'() {
+		given:
+		def result = testee.analyze(graphBuilder.addTask('t1').build())
+
+		when:
+		result.getSchedulingLayers()
+
+		then:
+		def ex = thrown(IllegalStateException)
+		ex.message == 'The scheduling layers were not calculated, use DeadlockDetector.analyze(graph, true)'
+	}
+
+	def 'analyzeKnots: a cycle is no deadlock, as long as another task of a wait for any of group is not deadlocked'() {
+		given:
+		graphBuilder.addTaskWaitsForAnyOf('t1', ['t2', 't3'])
+		graphBuilder.addTaskWaitsFor('t2', 't1')
+		graphBuilder.addTask('t3')
+		def graph = graphBuilder.build()
+
+		when:
+		def result = testee.analyzeKnots(graph)
+
+		then:
+		!result.hasDeadlock()
+		result.knots.isEmpty()
+		result.deadlockedTasks.isEmpty()
+	}
+
+	def 'analyzeKnots: knots and tasks waiting for knots are deadlocked'() {
+		given: 'a knot'
+		graphBuilder.addTaskWaitsForAnyOf('t1', ['t2', 't3'])
+		graphBuilder.addTaskWaitsForAnyOf('t2', ['t1'])
+		graphBuilder.addTaskWaitsForAnyOf('t3', ['t1', 't2'])
+
+		and: 'a task waiting for the knot'
+		graphBuilder.addTaskWaitsForAnyOf('t4', ['t1', 't2'])
+
+		and: 'a task referencing itself'
+		graphBuilder.addTaskWaitsFor('t5', 't5')
+
+		and: 'a task waiting for any of a deadlocked and a not deadlocked task'
+		graphBuilder.addTaskWaitsForAnyOf('t6', ['t1', 't7'])
+		def graph = graphBuilder.build()
+
+		when:
+		def result = testee.analyzeKnots(graph)
+
+		then:
+		result.hasDeadlock()
+		result.knots == [['t1', 't2', 't3'] as Set, ['t5'] as Set] as Set
+		result.deadlockedTasks == ['t1', 't2', 't3', 't4', 't5'] as Set
+		result.isDeadlocked('t4')
+		!result.isDeadlocked('t6')
+		!result.isDeadlocked('t7')
+	}
+
+	def 'analyzeKnots: wait for and wait for any of dependencies combined'() {
+		given:
+		graphBuilder.addTaskWaitsForAnyOf('t1', ['t2', 't3'])
+		graphBuilder.addTaskWaitsFor('t1', 't4')
+		graphBuilder.addTaskWaitsFor('t4', 't1')
+		graphBuilder.addTask('t2')
+		def graph = graphBuilder.build()
+
+		when:
+		def result = testee.analyzeKnots(graph)
+
+		then:
+		result.knots == [['t1', 't4'] as Set] as Set
+		result.deadlockedTasks == ['t1', 't4'] as Set
+	}
+
+	def 'analyzeKnots: a fulfilled wait for any of group does not connect to its deadlocked tasks'() {
+		given:
+		graphBuilder.addTaskWaitsFor('A', 'D')
+		graphBuilder.addTaskWaitsFor('D', 'A')
+		graphBuilder.addTaskWaitsForAnyOf('A', ['B', 'C'])
+		graphBuilder.addTask('B')
+		graphBuilder.addTaskWaitsFor('C', 'C')
+		def graph = graphBuilder.build()
+
+		when:
+		def result = testee.analyzeKnots(graph)
+
+		then:
+		result.knots == [['A', 'D'] as Set, ['C'] as Set] as Set
+		result.deadlockedTasks == ['A', 'C', 'D'] as Set
+	}
+
+	def 'analyzeKnots: same result as analyze for graphs without wait for any of groups'() {
+		given:
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		graphBuilder.addTaskWaitsFor('t2', 't3')
+		graphBuilder.addTaskWaitsFor('t3', 't1')
+		graphBuilder.addTaskWaitsFor('t4', 't1')
+		graphBuilder.addTaskWaitsFor('t7', 't6')
+		graphBuilder.addTask('t5')
+		def graph = graphBuilder.build()
+
+		when:
+		def result = testee.analyzeKnots(graph)
+
+		then:
+		result.deadlockedTasks == testee.analyze(graph).deadlockCycles.collectMany { it.allDeadlockedTasks } as Set
+	}
+
+	def 'hasDeadlock: same answer as analyze'() {
+		given:
+		edges.each { graphBuilder.addTaskWaitsFor(it[0], it[1]) }
+		graphBuilder.addTask('t0')
+		def graph = graphBuilder.build()
+
+		expect:
+		testee.hasDeadlock(graph) == result
+		testee.analyze(graph).hasDeadlock() == result
+
+		where:
+		edges                                                    | result
+		[]                                                       | false
+		[['t1', 't1']]                                           | true
+		[['t1', 't2'], ['t2', 't1']]                             | true
+		[['t1', 't2'], ['t2', 't3'], ['t3', 't1']]               | true
+		[['t1', 't2'], ['t1', 't3'], ['t2', 't3']]               | false
+		[['t4', 't1'], ['t1', 't2'], ['t2', 't3'], ['t3', 't2']] | true
+	}
+
+	def 'hasDeadlock: reuses the scratch arrays for graphs of different sizes'() {
+		given:
+		def bigGraph = graphBuilder.addTasks((1..1000).collect { "t${it}".toString() }).build()
+		def smallDeadlockedGraph = new GraphBuilder<String>().addTaskWaitsFor('t1', 't2').addTaskWaitsFor('t2', 't1').build()
+		def smallGraph = new GraphBuilder<String>().addTaskWaitsFor('t1', 't2').build()
+
+		expect:
+		!testee.hasDeadlock(bigGraph)
+		testee.hasDeadlock(smallDeadlockedGraph)
+		!testee.hasDeadlock(smallGraph)
+		!testee.hasDeadlock(bigGraph)
+	}
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.TimeUnit
+
+class GraphBuilderJournalTest extends Specification {
+
+	Path directory = Files.createTempDirectory('jtwfg-journal-test')
+	def graphBuilder = new GraphBuilder<String>()
+
+	def cleanup() {
+		directory.toFile().deleteDir()
+	}
+
+	def 'replay: rebuilds the journaled graph'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings(), 16, 0, TimeUnit.SECONDS, 1024)
+
+		when:
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		graphBuilder.addTaskWaitsFor('t2', 't3')
+		graphBuilder.addTaskWaitsForAnyOf('t3', ['t4', 't5'])
+		graphBuilder.addTaskWaitsForAnyOf('t4', ['t1', 't5'])
+		graphBuilder.addTaskWaitsFor('t5', 't6')
+		graphBuilder.removeTaskWaitForDependency('t5', 't6')
+		graphBuilder.removeTaskWaitForAnyOfDependency('t4', ['t1', 't5'])
+		graphBuilder.removeTask('t6')
+		testee.close()
+
+		then:
+		def replayed = GraphBuilderJournal.replay(directory, TaskIdCodec.forStrings())
+		replayed.build() == graphBuilder.build()
+		dependenciesOf(replayed) == dependenciesOf(graphBuilder)
+		replayed.build().getTask('t3').getWaitsForAnyOfTasks()*.collect { it.id } == [['t4', 't5']]
+		!replayed.hasTask('t6')
+	}
+
+	def 'replay: contains the flushed changes of a journal which was not closed'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings(), 1024, 0, TimeUnit.SECONDS, 1024)
+
+		when:
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		testee.flush()
+		graphBuilder.addTaskWaitsFor('t2', 't1')
+
+		then:
+		def replayed = GraphBuilderJournal.replay(directory, TaskIdCodec.forStrings())
+		replayed.hasTask('t1')
+		replayed.hasTask('t2')
+		replayed.getDependencyCount() == 1
+
+		cleanup:
+		testee.close()
+	}
+
+	def 'compact: replaces the older generations by a snapshot of the current graph'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings(), 16, 0, TimeUnit.SECONDS, 1024)
+		(1..100).each { graphBuilder.addTaskWaitsFor("t$it".toString(), "t${it + 1}".toString()) }
+		(1..50).each { graphBuilder.removeTask("t$it".toString()) }
+		graphBuilder.addTaskWaitsForAnyOf('t60', ['t70', 't80'])
+		def journalBytesBefore = testee.getJournalBytes()
+
+		when:
+		testee.compact()
+		graphBuilder.addTaskWaitsFor('t101', 't51')
+		testee.close()
+
+		then:
+		testee.getJournalBytes() < journalBytesBefore
+		directory.toFile().list().sort() == ['jtwfg-0000000000000000002.journal', 'jtwfg-0000000000000000002.snapshot']
+		def replayed = GraphBuilderJournal.replay(directory, TaskIdCodec.forStrings())
+		replayed.build() == graphBuilder.build()
+		dependenciesOf(replayed) == dependenciesOf(graphBuilder)
+		replayed.getDependencyCount() == 53
+	}
+
+	def 'replay: ignores a batch whose first byte was not written yet'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings(), 16, 0, TimeUnit.SECONDS, 1024)
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		testee.close()
+
+		when: 'a crash happened while writing the next batch'
+		Files.write(journalFile(), [0, 0, 0, 0, 2, 116, 51] as byte[], StandardOpenOption.APPEND)
+
+		then:
+		def replayed = GraphBuilderJournal.replay(directory, TaskIdCodec.forStrings())
+		dependenciesOf(replayed) == dependenciesOf(graphBuilder)
+	}
+
+	def 'replay: fails for a truncated record'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings(), 16, 0, TimeUnit.SECONDS, 1024)
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		testee.close()
+		Files.write(journalFile(), [1, 0, 0, 0, 2, 116] as byte[], StandardOpenOption.APPEND)
+
+		when:
+		GraphBuilderJournal.replay(directory, TaskIdCodec.forStrings())
+
+		then:
+		def ex = thrown(IOException)
+		ex.message.startsWith('Truncated record')
+	}
+
+	def 'flush and close: report a failure to write the journal, which never fails the graph builder'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings(), 16, 0, TimeUnit.SECONDS, 1024)
+		directory.toFile().deleteDir()
+
+		when:
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		graphBuilder.addTaskWaitsFor('t2', 't1')
+
+		then:
+		noExceptionThrown()
+		graphBuilder.getDependencyCount() == 2
+
+		when:
+		testee.flush()
+
+		then:
+		thrown(IOException)
+
+		when:
+		testee.close()
+
+		then:
+		thrown(IOException)
+	}
+
+	def 'constructor: a journal attached to a replayed graph builder continues the graph'() {
+		given:
+		def journal = new GraphBuilderJournal<Long>(new GraphBuilder<Long>().addTaskWaitsFor(1L, 2L), directory, TaskIdCodec.forLongs())
+		journal.close()
+
+		when: 'restarting'
+		def replayed = GraphBuilderJournal.replay(directory, TaskIdCodec.forLongs())
+		def testee = new GraphBuilderJournal<Long>(replayed, directory, TaskIdCodec.forLongs())
+		replayed.addTaskWaitsFor(2L, 1L)
+		testee.close()
+
+		then:
+		new DeadlockDetector<Long>().hasDeadlock(GraphBuilderJournal.replay(directory, TaskIdCodec.forLongs()).build())
+	}
+
+	def 'close: stops journaling'() {
+		given:
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings())
+
+		when:
+		testee.close()
+		graphBuilder.addTask('t1')
+
+		then:
+		!GraphBuilderJournal.replay(directory, TaskIdCodec.forStrings()).hasTask('t1')
+	}
+
+	def 'close: keeps a journal attached later to the graph builder'() {
+		given:
+		def otherDirectory = Files.createTempDirectory('jtwfg-journal-test')
+		def testee = new GraphBuilderJournal<String>(graphBuilder, directory, TaskIdCodec.forStrings())
+		def newerJournal = new GraphBuilderJournal<String>(graphBuilder, otherDirectory, TaskIdCodec.forStrings())
+
+		when:
+		testee.close()
+		graphBuilder.addTask('t1')
+		newerJournal.close()
+
+		then:
+		GraphBuilderJournal.replay(otherDirectory, TaskIdCodec.forStrings()).hasTask('t1')
+
+		cleanup:
+		otherDirectory.toFile().deleteDir()
+	}
+
+	def 'constructor: rejects graph builders with weakly held task ids'() {
+		when:
+		new GraphBuilderJournal<String>(new GraphBuilder<String>(true), directory, TaskIdCodec.forStrings())
+
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	private Path journalFile() {
+		directory.toFile().listFiles().find { it.name.endsWith('.journal') }.toPath()
+	}
+
+	private static Map<Object, List<Object>> dependenciesOf(GraphBuilder<?> graphBuilder) {
+		graphBuilder.build().getTasks().collectEntries { task ->
+			[(task.getId()): [task.getWaitsForTasks()*.getId(), task.getWaitsForAnyOfTasks().collect { group -> group*.getId() }]]
+		}
+	}
+}
@@ -230,6 +230,322 @@ class GraphBuilderTest extends Specification {
 		ex.message == 't1 is existing but was not waiting on t3'
 	}
 
+	def 'addTaskWaitsForAnyOf and build'() {
+		given:
+		testee.addTaskWaitsForAnyOf('t1', ['t3', 't2'])
+		testee.addTaskWaitsForAnyOf('t1', ['t4'])
+
+		when:
+		def graph = testee.build()
+
+		then:
+		graph.getTasks().size() == 4
+		graph.getTask('t1').getWaitsForTasks().isEmpty()
+		graph.getTask('t1').getWaitsForAnyOfTasks() == [[new Task<String>('t2'), new Task<String>('t3')] as Set, [new Task<String>('t4')] as Set] as Set
+		graph.getTask('t1').getWaitsForAnyOfTasks()[0].collect { it.getId() } == ['t2', 't3']
+		graph.getTask('t1').getWaitsForAnyOfTasks()[0][0].is(graph.getTask('t2'))
+	}
+
+	def 'addTaskWaitsForAnyOf: waitingOnTaskIds must not be empty'() {
+		when:
+		testee.addTaskWaitsForAnyOf('t1', [])
+
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'waitingOnTaskIds must not be empty'
+	}
+
+	def 'removeTask: removes the wait for any of groups containing the task'() {
+		given:
+		testee.addTaskWaitsForAnyOf('t1', ['t2', 't3'])
+		testee.addTaskWaitsForAnyOf('t1', ['t3', 't4'])
+		testee.addTaskWaitsForAnyOf('t1', ['t4', 't5'])
+
+		when:
+		testee.removeTask('t3')
+		def graph = testee.build()
+
+		then:
+		graph.getTask('t1').getWaitsForAnyOfTasks() == [[new Task<String>('t4'), new Task<String>('t5')] as Set] as Set
+	}
+
+	def 'removeTaskWaitForAnyOfDependency: happy flow'() {
+		given:
+		testee.addTaskWaitsForAnyOf('t1', ['t2', 't3'])
+
+		when:
+		testee.removeTaskWaitForAnyOfDependency('t1', ['t3', 't2'])
+		def graph = testee.build()
+
+		then:
+		graph.getTasks().size() == 3
+		graph.getTask('t1').getWaitsForAnyOfTasks().isEmpty()
+	}
+
+	def 'removeTaskWaitForAnyOfDependency: works only on existing groups'() {
+		given:
+		testee.addTaskWaitsForAnyOf('t1', ['t2', 't3'])
+
+		when:
+		testee.removeTaskWaitForAnyOfDependency('t1', ['t42'])
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'taskId t42 is unknown'
+
+		when:
+		testee.removeTaskWaitForAnyOfDependency('t1', ['t2'])
+		then:
+		ex = thrown(IllegalArgumentException)
+		ex.message == 't1 is existing but was not waiting on any of [t2]'
+	}
+
+	def 'getVersion: changes only when the graph changes'() {
+		given:
+		def initialVersion = testee.getVersion()
+
+		when:
+		testee.addTaskWaitsFor('t1', 't2')
+		def version = testee.getVersion()
+
+		then:
+		version > initialVersion
+
+		when: 'nothing changes'
+		testee.addTask('t1')
+		testee.addTaskWaitsFor('t1', 't2')
+
+		then:
+		testee.getVersion() == version
+
+		when:
+		testee.removeTaskWaitForDependency('t1', 't2')
+
+		then:
+		testee.getVersion() > version
+	}
+
+	def 'build: graphs of the same builder and version are the same version'() {
+		given:
+		testee.addTaskWaitsFor('t1', 't2')
+
+		when:
+		def graph1 = testee.build()
+		def graph2 = testee.build()
+		testee.addTask('t3')
+		def graph3 = testee.build()
+		def graphOfOtherBuilder = new GraphBuilder().addTaskWaitsFor('t1', 't2').build()
+
+		then:
+		graph1.getVersion() == testee.getVersion() - 1
+		graph1.isSameVersion(graph2)
+		graph1 == graph2
+		!graph1.isSameVersion(graph3)
+		graph1 != graph3
+		!graph1.isSameVersion(graphOfOtherBuilder)
+		graph1 == graphOfOtherBuilder
+		graph1.hashCode() == graphOfOtherBuilder.hashCode()
+	}
+
+	def 'weak task ids: tasks are removed with their dependencies once their id is garbage collected'() {
+		given:
+		def weakTestee = new GraphBuilder<String>(true)
+		def taskId1 = new String('t1')
+		def taskId2 = new String('t2')
+		def taskId3 = new String('t3')
+		weakTestee.addTaskWaitsFor(taskId1, taskId2)
+		weakTestee.addTaskWaitsFor(taskId2, taskId1)
+		weakTestee.addTaskWaitsForAnyOf(taskId1, [taskId2, taskId3])
+
+		when:
+		taskId2 = null
+		waitUntilRemoved(weakTestee, 't2')
+		def graph = weakTestee.build()
+
+		then:
+		graph.getTasks().collect { it.getId() } == ['t1', 't3']
+		graph.getTask('t1').getWaitsForTasks().isEmpty()
+		graph.getTask('t1').getWaitsForAnyOfTasks().isEmpty()
+		taskId1 != null
+		taskId3 != null
+	}
+
+	def 'weak task ids: the version changes whenever the content of the snapshot changes'() {
+		given:
+		def weakTestee = new GraphBuilder<String>(true)
+		def taskId1 = new String('t1')
+		weakTestee.addTaskWaitsFor(taskId1, new String('t2'))
+		weakTestee.addTaskWaitsForAnyOf(taskId1, [new String('t3'), new String('t4')])
+		def version = weakTestee.build().getVersion()
+
+		when: 'the ids are collected, but possibly not yet enqueued'
+		def graph = weakTestee.build()
+		def deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)
+		while (graph.getTasks().size() > 1 && System.currentTimeMillis() < deadline) {
+			graph = null
+			System.gc()
+			graph = weakTestee.build()
+		}
+
+		then:
+		graph.getTasks().collect { it.getId() } == ['t1']
+		graph.getVersion() != version
+		weakTestee.build().isSameVersion(graph)
+		weakTestee.getTaskCount() == 1
+		weakTestee.getDependencyCount() == 0
+	}
+
+	def 'weak task ids: taskId must not be null'() {
+		when:
+		new GraphBuilder<String>(true).removeTasks(['t1', null])
+
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'taskId must not be null'
+	}
+
+	def 'weak task ids: explicit removal works as usual'() {
+		given:
+		def weakTestee = new GraphBuilder<String>(true)
+		def taskId1 = new String('t1')
+		def taskId2 = new String('t2')
+		weakTestee.addTaskWaitsFor(taskId1, taskId2)
+
+		when:
+		weakTestee.removeTask('t2')
+
+		then:
+		!weakTestee.hasTask(taskId2)
+		weakTestee.build().getTasks() == [new Task<String>(taskId1)] as Set
+		weakTestee.build().getTasks().getAt(0).getWaitsForTasks().isEmpty()
+	}
+
+	def 'build: long chains of dependencies'() {
+		given:
+		def numberOfTasks = 100000
+		(1..numberOfTasks).each { int it ->
+			testee.addTaskWaitsFor(it, it + 1)
+		}
+
+		when:
+		def graph = testee.build()
+
+		then:
+		graph.getTasks().size() == numberOfTasks + 1
+	}
+
+	def 'getTaskCount, getDependencyCount and getEstimatedFootprintBytes'() {
+		when:
+		testee.addTaskWaitsFor('t1', 't2')
+		testee.addTaskWaitsFor('t2', 't2')
+		testee.addTaskWaitsForAnyOf('t3', ['t1', 't2'])
+
+		then:
+		testee.getTaskCount() == 3
+		testee.getDependencyCount() == 4
+		testee.getEstimatedFootprintBytes() == 3 * GraphBuilder.ESTIMATED_BYTES_PER_TASK + 4 * GraphBuilder.ESTIMATED_BYTES_PER_DEPENDENCY
+
+		when:
+		testee.removeTask('t2')
+
+		then:
+		testee.getTaskCount() == 2
+		testee.getDependencyCount() == 0
+	}
+
+	def 'capacity limits: REJECT'() {
+		given:
+		def limitedTestee = new GraphBuilder<String>(false, new CapacityLimits(2, 1))
+		limitedTestee.addTaskWaitsFor('t1', 't2')
+
+		when: 'nothing changes'
+		limitedTestee.addTaskWaitsFor('t1', 't2')
+
+		then:
+		noExceptionThrown()
+
+		when:
+		limitedTestee.addTask('t3')
+
+		then:
+		thrown(IllegalStateException)
+
+		when:
+		limitedTestee.addTaskWaitsFor('t2', 't1')
+
+		then:
+		thrown(IllegalStateException)
+		limitedTestee.getTaskCount() == 2
+		limitedTestee.getDependencyCount() == 1
+	}
+
+	def 'capacity limits: BLOCK until other threads remove tasks'() {
+		given:
+		def limitedTestee = new GraphBuilder<String>(false, new CapacityLimits(1, 0, 1, 0, CapacityLimits.OverflowPolicy.BLOCK, 1, TimeUnit.MINUTES, null))
+		limitedTestee.addTask('t1')
+		Thread.startDaemon {
+			Thread.sleep(100)
+			limitedTestee.removeTask('t1')
+		}
+
+		when:
+		limitedTestee.addTask('t2')
+
+		then:
+		limitedTestee.build().getTasks() == [new Task<String>('t2')] as Set
+	}
+
+	def 'capacity limits: BLOCK with timeout'() {
+		given:
+		def limitedTestee = new GraphBuilder<String>(false, new CapacityLimits(1, 0, 1, 0, CapacityLimits.OverflowPolicy.BLOCK, 50, TimeUnit.MILLISECONDS, null))
+		limitedTestee.addTask('t1')
+
+		when:
+		limitedTestee.addTask('t2')
+
+		then:
+		thrown(IllegalStateException)
+	}
+
+	def 'capacity limits: CALLBACK and soft limits'() {
+		given:
+		def events = []
+		def listener = new CapacityListener() {
+			@Override
+			void softLimitExceeded(GraphBuilder<?> graphBuilder) {
+				events << 'soft limit exceeded with ' + graphBuilder.getTaskCount() + ' tasks'
+			}
+
+			@Override
+			void hardLimitReached(GraphBuilder<?> graphBuilder) {
+				events << 'hard limit reached'
+				graphBuilder.removeTask('t1')
+			}
+		}
+		def limitedTestee = new GraphBuilder<String>(false, new CapacityLimits(2, 10, 1, 10, CapacityLimits.OverflowPolicy.CALLBACK, 0, TimeUnit.SECONDS, listener))
+
+		when:
+		limitedTestee.addTasks(['t1', 't2'])
+		limitedTestee.addTask('t3')
+
+		then:
+		events == ['soft limit exceeded with 2 tasks', 'hard limit reached', 'soft limit exceeded with 2 tasks']
+		limitedTestee.build().getTasks() == [new Task<String>('t2'), new Task<String>('t3')] as Set
+	}
+
+	def 'capacity limits: arguments are checked'() {
+		when:
+		new CapacityLimits(2, 1, 3, 1, CapacityLimits.OverflowPolicy.REJECT, 0, TimeUnit.SECONDS, null)
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'softMaxTasks must be >= 0 and <= maxTasks: 3'
+
+		when:
+		new CapacityLimits(2, 1, 2, 1, CapacityLimits.OverflowPolicy.CALLBACK, 0, TimeUnit.SECONDS, null)
+		then:
+		ex = thrown(IllegalArgumentException)
+		ex.message == 'capacityListener must not be null with overflowPolicy CALLBACK'
+	}
+
 	def 'build creates always a separate graph instance with separate task instance copies'() {
 		setup:
 		def taskId1 = 't1'
@@ -366,4 +682,12 @@ class GraphBuilderTest extends Specification {
 		graph != null
 		graph.getTasks().collect { it.getId() }.toSet().containsAll(mainThreadTaskIds)
 	}
+
+	private static void waitUntilRemoved(GraphBuilder<String> graphBuilder, String taskId) {
+		def deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)
+		while (graphBuilder.hasTask(taskId) && System.currentTimeMillis() < deadline) {
+			System.gc()
+			Thread.sleep(10)
+		}
+	}
 }
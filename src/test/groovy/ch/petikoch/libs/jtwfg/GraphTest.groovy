@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg
+
+import spock.lang.Specification
+
+class GraphTest extends Specification {
+
+	def graphBuilder = new GraphBuilder<String>()
+
+	def 'getTask: looks up a task by its id'() {
+		given:
+		graphBuilder.addTaskWaitsFor('t1', 't2')
+		def graph = graphBuilder.build()
+
+		when:
+		def task = graph.getTask('t2')
+
+		then:
+		task != null
+		task.getId() == 't2'
+		task.is(graph.getTasks().getAt(1))
+		graph.hasTask('t1')
+		graph.getTask('t42') == null
+		!graph.hasTask('t42')
+	}
+
+	def 'getTask: taskId must not be null'() {
+		given:
+		def graph = graphBuilder.build()
+
+		when:
+		graph.getTask(null)
+
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'taskId must not be null'
+	}
+
+	def 'getWaitedOnBy: the reverse of the wait for dependencies'() {
+		given:
+		graphBuilder.addTaskWaitsFor('t1', 't3')
+		graphBuilder.addTaskWaitsFor('t2', 't3')
+		graphBuilder.addTaskWaitsFor('t3', 't4')
+		graphBuilder.addTask('t5')
+		def graph = graphBuilder.build()
+
+		expect:
+		graph.getWaitedOnBy('t3').collect { it.getId() } == ['t1', 't2']
+		graph.getWaitedOnBy('t4').collect { it.getId() } == ['t3']
+		graph.getWaitedOnBy('t1').isEmpty()
+		graph.getWaitedOnBy('t5').isEmpty()
+	}
+
+	def 'getInDegree and getOutDegree'() {
+		given:
+		graphBuilder.addTaskWaitsFor('t1', 't3')
+		graphBuilder.addTaskWaitsFor('t2', 't3')
+		graphBuilder.addTaskWaitsFor('t3', 't1')
+		graphBuilder.addTask('t4')
+		def graph = graphBuilder.build()
+
+		expect:
+		graph.getInDegree('t1') == 1
+		graph.getOutDegree('t1') == 1
+		graph.getInDegree('t3') == 2
+		graph.getOutDegree('t3') == 1
+		graph.getInDegree('t4') == 0
+		graph.getOutDegree('t4') == 0
+	}
+
+	def 'getWaitedOnBy, getInDegree, getOutDegree: taskId must be known'() {
+		given:
+		def graph = graphBuilder.addTask('t1').build()
+
+		when:
+		graph.getWaitedOnBy('t42')
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'taskId t42 is unknown'
+
+		when:
+		graph.getInDegree('t42')
+		then:
+		ex = thrown(IllegalArgumentException)
+		ex.message == 'taskId t42 is unknown'
+
+		when:
+		graph.getOutDegree('t42')
+		then:
+		ex = thrown(IllegalArgumentException)
+		ex.message == 'taskId t42 is unknown'
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014-2021 Peti Koch und Adrian Elsener
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.petikoch.libs.jtwfg.jvm
+
+import ch.petikoch.libs.jtwfg.CapacityLimits
+import ch.petikoch.libs.jtwfg.DeadlockDetector
+import ch.petikoch.libs.jtwfg.GraphBuilder
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+class ThreadWaitForGraphSamplerTest extends Specification {
+
+	def graphBuilder = new GraphBuilder<Long>()
+	def deadlockDetector = new DeadlockDetector<Long>()
+
+	def 'sample: finds a deadlock between two threads using ReentrantLocks'() {
+		given:
+		def testee = new ThreadWaitForGraphSampler(graphBuilder)
+		def lock1 = new ReentrantLock()
+		def lock2 = new ReentrantLock()
+		def bothLocked = new CountDownLatch(2)
+		def thread1 = Thread.startDaemon { lockBothInterruptibly(lock1, lock2, bothLocked) }
+		def thread2 = Thread.startDaemon { lockBothInterruptibly(lock2, lock1, bothLocked) }
+		waitUntilQueued(thread1, lock2)
+		waitUntilQueued(thread2, lock1)
+
+		when:
+		testee.sample()
+		def result = deadlockDetector.analyze(graphBuilder.build())
+
+		then:
+		result.hasDeadlock()
+		result.isDeadlocked(thread1.getId())
+		result.isDeadlocked(thread2.getId())
+		!result.isDeadlocked(Thread.currentThread().getId())
+
+		when: 'the threads terminate'
+		thread1.interrupt()
+		thread2.interrupt()
+		thread1.join()
+		thread2.join()
+		testee.sample()
+
+		then:
+		!deadlockDetector.analyze(graphBuilder.build()).hasDeadlock()
+		!graphBuilder.hasTask(thread1.getId())
+		!graphBuilder.hasTask(thread2.getId())
+		graphBuilder.hasTask(Thread.currentThread().getId())
+		testee.getSampleCount() == 2
+	}
+
+	def 'sample: ownable synchronizers can be excluded'() {
+		given:
+		def testee = new ThreadWaitForGraphSampler(graphBuilder, 1, TimeUnit.SECONDS, false, 0.01)
+		def lock1 = new ReentrantLock()
+		def lock2 = new ReentrantLock()
+		def bothLocked = new CountDownLatch(2)
+		def thread1 = Thread.startDaemon { lockBothInterruptibly(lock1, lock2, bothLocked) }
+		def thread2 = Thread.startDaemon { lockBothInterruptibly(lock2, lock1, bothLocked) }
+		waitUntilQueued(thread1, lock2)
+		waitUntilQueued(thread2, lock1)
+
+		when:
+		testee.sample()
+
+		then:
+		!deadlockDetector.analyze(graphBuilder.build()).hasDeadlock()
+
+		cleanup:
+		thread1.interrupt()
+		thread2.interrupt()
+	}
+
+	def 'sample: a thread in Object.wait() doesn't wait for the holder of the monitor'() {
+		given:
+		def testee = new ThreadWaitForGraphSampler(graphBuilder)
+		def monitor = new Object()
+		def waiter = Thread.startDaemon {
+			synchronized (monitor) {
+				monitor.wait()
+			}
+		}
+
+		when: 'the monitor is held while the waiter waits'
+		synchronized (monitor) {
+			while (waiter.getState() != Thread.State.WAITING) {
+				monitor.wait(10)
+			}
+			testee.sample()
+		}
+
+		then:
+		graphBuilder.build().getTask(waiter.getId()).getWaitsForTasks().isEmpty()
+
+		cleanup:
+		synchronized (monitor) {
+			monitor.notifyAll()
+		}
+	}
+
+	def 'start and stop: samples periodically'() {
+		given:
+		def testee = new ThreadWaitForGraphSampler(graphBuilder, 10, TimeUnit.MILLISECONDS, true, 1)
+
+		when:
+		testee.start()
+		Thread.sleep(200)
+		testee.stop()
+		def sampleCount = testee.getSampleCount()
+
+		then:
+		sampleCount > 1
+		testee.getTotalSampleDurationNanos() >= testee.getLastSampleDurationNanos()
+		graphBuilder.hasTask(Thread.currentThread().getId())
+
+		when:
+		Thread.sleep(50)
+
+		then:
+		testee.getSampleCount() == sampleCount
+	}
+
+	def 'start: keeps sampling periodically after a failed sample'() {
+		given: 'a graph builder too small for the threads of the JVM'
+		def testee = new ThreadWaitForGraphSampler(new GraphBuilder<Long>(false, new CapacityLimits(1, 0)), 10, TimeUnit.MILLISECONDS, true, 1)
+
+		when:
+		testee.start()
+		while (testee.getFailedSampleCount() < 3) {
+			Thread.sleep(10)
+		}
+		testee.stop()
+
+		then:
+		testee.getLastFailure() instanceof IllegalStateException
+		testee.getSampleCount() == 0
+	}
+
+	def 'sample: tolerates dependencies removed by someone else sharing the graph builder'() {
+		given:
+		def testee = new ThreadWaitForGraphSampler(graphBuilder)
+		def lock = new ReentrantLock()
+		def locked = new CountDownLatch(1)
+		def release = new CountDownLatch(1)
+		def acquired = new CountDownLatch(1)
+		def done = new CountDownLatch(1)
+		def owner = Thread.startDaemon {
+			lock.lock()
+			locked.countDown()
+			release.await()
+			lock.unlock()
+			done.await()
+		}
+		locked.await()
+		def waiter = Thread.startDaemon {
+			lock.lock()
+			lock.unlock()
+			acquired.countDown()
+			done.await()
+		}
+		waitUntilQueued(waiter, lock)
+		testee.sample()
+		graphBuilder.removeTaskWaitForDependency(waiter.getId(), owner.getId())
+
+		when: 'the waiter gets the lock and waits afterwards without a lock owner'
+		release.countDown()
+		acquired.await()
+		while (waiter.getState() != Thread.State.WAITING) {
+			Thread.sleep(10)
+		}
+		testee.sample()
+
+		then:
+		noExceptionThrown()
+		graphBuilder.build().getTask(waiter.getId()).getWaitsForTasks().isEmpty()
+
+		cleanup:
+		done.countDown()
+	}
+
+	def 'constructor: checks the arguments'() {
+		when:
+		new ThreadWaitForGraphSampler(graphBuilder, 0, TimeUnit.SECONDS, true, 0.01)
+		then:
+		def ex = thrown(IllegalArgumentException)
+		ex.message == 'interval must be > 0: 0'
+
+		when:
+		new ThreadWaitForGraphSampler(graphBuilder, 1, TimeUnit.SECONDS, true, 0)
+		then:
+		ex = thrown(IllegalArgumentException)
+		ex.message == 'maxOverheadRatio must be > 0 and <= 1: 0.0'
+	}
+
+	private static void lockBothInterruptibly(ReentrantLock first, ReentrantLock second, CountDownLatch bothLocked) {
+		first.lock()
+		bothLocked.countDown()
+		bothLocked.await()
+		try {
+			second.lockInterruptibly()
+		} catch (InterruptedException ignored) {
+			// test is over
+		}
+	}
+
+	private static void waitUntilQueued(Thread thread, ReentrantLock lock) {
+		while (!lock.hasQueuedThread(thread)) {
+			Thread.sleep(10)
+		}
+	}
+}